@@ -0,0 +1,113 @@
+package com.irina.vkbot;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ActivityTracker {
+  static final long PRUNE_INTERVAL_SECONDS = 3600;
+
+  private final Db db;
+  private final IntLongMap known = new IntLongMap(1024);
+  private final IntLongMap dirty = new IntLongMap(1024);
+  private final AtomicLong inserted = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong flushed = new AtomicLong();
+  private long lastPruneAt = System.currentTimeMillis();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "activity-flush");
+    t.setDaemon(true);
+    return t;
+  });
+
+  public ActivityTracker(Db db) {
+    this.db = db;
+  }
+
+  public void start(int flushIntervalSeconds) {
+    int interval = Math.max(1, flushIntervalSeconds);
+    scheduler.scheduleWithFixedDelay(this::flushSafely, interval, interval, TimeUnit.SECONDS);
+  }
+
+  public synchronized boolean touch(int userId, long now) {
+    if (!known.containsKey(userId)) {
+      return true;
+    }
+    if (known.get(userId, 0) != now) {
+      known.put(userId, now);
+      dirty.put(userId, now);
+    }
+    coalesced.incrementAndGet();
+    return false;
+  }
+
+  public synchronized void markKnown(int userId, long seenAt) {
+    if (!known.containsKey(userId)) {
+      known.put(userId, seenAt);
+      inserted.incrementAndGet();
+    }
+  }
+
+  public void flush() {
+    int[] ids;
+    long[] seen;
+    int n;
+    synchronized (this) {
+      if (dirty.size() == 0) {
+        return;
+      }
+      ids = new int[dirty.size()];
+      seen = new long[dirty.size()];
+      n = dirty.drainTo(ids, seen);
+    }
+    try {
+      db.saveLastSeenBatch(ids, seen, n);
+      flushed.addAndGet(n);
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        for (int i = 0; i < n; i++) {
+          if (known.get(ids[i], 0) == seen[i]) {
+            dirty.put(ids[i], seen[i]);
+          }
+        }
+      }
+      throw e;
+    }
+  }
+
+  private void flushSafely() {
+    try {
+      flush();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    long now = System.currentTimeMillis();
+    if (now - lastPruneAt >= TimeUnit.SECONDS.toMillis(PRUNE_INTERVAL_SECONDS)) {
+      lastPruneAt = now;
+      try {
+        db.pruneHandled();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  public void close() {
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flushSafely();
+  }
+
+  public synchronized String metrics() {
+    return "known=" + known.size() +
+      " pending=" + dirty.size() +
+      " inserted=" + inserted.get() +
+      " coalesced=" + coalesced.get() +
+      " flushed=" + flushed.get();
+  }
+}
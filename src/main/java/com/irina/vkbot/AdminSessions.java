@@ -0,0 +1,201 @@
+package com.irina.vkbot;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AdminSessions {
+  static final long MAX_SWEEP_INTERVAL_SECONDS = 3600;
+
+  private final Db db;
+  private final long ttlSeconds;
+  private final Map<Integer, AdminSession> sessions = new ConcurrentHashMap<>();
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+  private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "admin-sessions");
+    t.setDaemon(true);
+    return t;
+  });
+
+  public AdminSessions(Db db, int ttlSeconds) {
+    this.db = db;
+    this.ttlSeconds = ttlSeconds;
+  }
+
+  public void load() {
+    long now = Instant.now().getEpochSecond();
+    for (AdminState row : db.loadAdminStates()) {
+      if (isExpired(row.updatedAt, now)) {
+        db.clearAdminState(row.userId);
+        expired.incrementAndGet();
+        continue;
+      }
+      try {
+        sessions.put(row.userId, AdminSession.fromRow(row));
+      } catch (Exception e) {
+        e.printStackTrace();
+        db.clearAdminState(row.userId);
+      }
+    }
+  }
+
+  public void start() {
+    if (ttlSeconds <= 0) {
+      return;
+    }
+    long interval = Math.max(60, Math.min(ttlSeconds, MAX_SWEEP_INTERVAL_SECONDS));
+    writer.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.SECONDS);
+  }
+
+  private void sweep() {
+    long now = Instant.now().getEpochSecond();
+    for (Map.Entry<Integer, AdminSession> e : sessions.entrySet()) {
+      if (!isExpired(e.getValue().updatedAt, now) || !sessions.remove(e.getKey(), e.getValue())) {
+        continue;
+      }
+      expired.incrementAndGet();
+      try {
+        db.clearAdminState(e.getKey());
+      } catch (Exception ex) {
+        ex.printStackTrace();
+      }
+    }
+  }
+
+  public AdminSession get(int userId) {
+    AdminSession s = sessions.get(userId);
+    if (s == null) {
+      return null;
+    }
+    if (isExpired(s.updatedAt, Instant.now().getEpochSecond())) {
+      expired.incrementAndGet();
+      clear(userId);
+      return null;
+    }
+    return s.copy();
+  }
+
+  public void put(int userId, String state, AdminSession session) {
+    AdminSession s = session.copy();
+    s.state = state;
+    s.updatedAt = Instant.now().getEpochSecond();
+    sessions.put(userId, s);
+    writeBehind(userId);
+  }
+
+  public void clear(int userId) {
+    sessions.remove(userId);
+    writeBehind(userId);
+  }
+
+  private void writeBehind(int userId) {
+    writer.execute(() -> {
+      try {
+        AdminSession s = sessions.get(userId);
+        if (s == null) {
+          db.clearAdminState(userId);
+        } else {
+          db.setAdminState(userId, s.state, s.toJson());
+        }
+        writes.incrementAndGet();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    });
+  }
+
+  private boolean isExpired(long updatedAt, long now) {
+    return ttlSeconds > 0 && updatedAt > 0 && now - updatedAt > ttlSeconds;
+  }
+
+  public void close() {
+    writer.shutdown();
+    try {
+      writer.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public String metrics() {
+    return "active=" + sessions.size() + " writes=" + writes.get() + " expired=" + expired.get();
+  }
+}
+
+class AdminSession {
+  String state;
+  String title;
+  String description;
+  String type;
+  int magnetId;
+  String field;
+  String text;
+  String attachment;
+  long updatedAt;
+
+  AdminSession copy() {
+    AdminSession s = new AdminSession();
+    s.state = state;
+    s.title = title;
+    s.description = description;
+    s.type = type;
+    s.magnetId = magnetId;
+    s.field = field;
+    s.text = text;
+    s.attachment = attachment;
+    s.updatedAt = updatedAt;
+    return s;
+  }
+
+  JsonObject toJson() {
+    JsonObject data = new JsonObject();
+    if (title != null) {
+      data.addProperty("title", title);
+    }
+    if (description != null) {
+      data.addProperty("description", description);
+    }
+    if (type != null) {
+      data.addProperty("type", type);
+    }
+    if (magnetId != 0) {
+      data.addProperty("id", magnetId);
+    }
+    if (field != null) {
+      data.addProperty("field", field);
+    }
+    if (text != null) {
+      data.addProperty("text", text);
+    }
+    if (attachment != null) {
+      data.addProperty("attachment", attachment);
+    }
+    return data;
+  }
+
+  static AdminSession fromRow(AdminState row) {
+    AdminSession s = new AdminSession();
+    s.state = row.state;
+    s.updatedAt = row.updatedAt;
+    if (row.data == null) {
+      return s;
+    }
+    JsonObject data = JsonParser.parseString(row.data).getAsJsonObject();
+    s.title = data.has("title") ? data.get("title").getAsString() : null;
+    s.description = data.has("description") ? data.get("description").getAsString() : null;
+    s.type = data.has("type") ? data.get("type").getAsString() : null;
+    s.magnetId = data.has("id") ? data.get("id").getAsInt() : 0;
+    s.field = data.has("field") ? data.get("field").getAsString() : null;
+    s.text = data.has("text") ? data.get("text").getAsString() : null;
+    s.attachment = data.has("attachment") ? data.get("attachment").getAsString() : null;
+    return s;
+  }
+}
@@ -8,14 +8,17 @@ import com.vk.api.sdk.httpclient.HttpTransportClient;
 public class BotApp {
   public static void main(String[] args) {
     Config config = Config.load();
-    Db db = new Db(config.dbPath);
+    Db db = new Db(config.dbPath, config.dbReadPoolSize);
     db.init();
 
     TransportClient transportClient = new HttpTransportClient();
     VkApiClient vk = new VkApiClient(transportClient);
     GroupActor actor = new GroupActor(config.groupId, config.token);
 
-    BotService bot = new BotService(config, db, vk, actor);
+    VkRateLimiter limiter = new VkRateLimiter(config.vkRequestsPerSecond);
+
+    BotService bot = new BotService(config, db, vk, actor, limiter);
+    Runtime.getRuntime().addShutdownHook(new Thread(bot::shutdown, "shutdown"));
     bot.run();
   }
 }
@@ -1,10 +1,8 @@
 package com.irina.vkbot;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.irina.vkbot.VkRateLimiter.Lane;
 import com.vk.api.sdk.client.VkApiClient;
 import com.vk.api.sdk.client.actors.GroupActor;
-import com.vk.api.sdk.objects.groups.responses.GetLongPollServerResponse;
 import com.vk.api.sdk.objects.groups.responses.IsMemberResponse;
 import com.vk.api.sdk.objects.messages.MessageAttachment;
 import com.vk.api.sdk.objects.messages.MessageAttachmentType;
@@ -20,18 +18,56 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BotService {
   private final Config config;
   private final Db db;
   private final VkApiClient vk;
   private final GroupActor actor;
-  private final LongPollClient longPoll = new LongPollClient();
+  private final VkRateLimiter limiter;
+  private final BroadcastWorker broadcastWorker;
+  private final SubscriptionReconciler reconciler;
   private final OkHttpClient http = new OkHttpClient();
+  private final UpdateQueue updateQueue;
+  private final MetricsReporter metrics = new MetricsReporter();
+  private final DedupWindow dedup;
+  private final MembershipCache membership;
+  private final EventSink events;
+  private final MagnetCatalog catalog;
+  private final ActivityTracker activity;
+  private final AdminSessions adminSessions;
+  private final CommandRouter<MessageContext> router;
+  private volatile PeerDispatcher dispatcher;
+  private volatile Thread pumpThread;
+  private volatile CallbackServer callbackServer;
+  private volatile LongPollIngestor ingestor;
+  private volatile Thread ingestThread;
+  private final ThreadLocal<ReplyBuffer> replies = ThreadLocal.withInitial(
+    () -> new ReplyBuffer((peerId, text, keyboard, attachment) -> sendMessageSafe(Lane.INTERACTIVE, peerId, text, keyboard, attachment)));
+  private final AtomicLong replyParts = new AtomicLong();
+  private final AtomicLong sends = new AtomicLong();
+
+  static final Set<String> HANDLED_TYPES = Set.of("message_new", "group_join", "group_leave");
+  static final long SHUTDOWN_TIMEOUT_MS = 10000;
+
+  private static final Map<String, String> TEXT_COMMANDS = Map.of(
+    "/start", "start",
+    "start", "start",
+    "старт", "start",
+    "начать", "start",
+    "меню", "start",
+    "/admin", "admin_menu",
+    "админ", "admin_menu",
+    "admin", "admin_menu"
+  );
 
   private static final String STATE_ADD_TITLE = "ADMIN_ADD_TITLE";
   private static final String STATE_ADD_DESC = "ADMIN_ADD_DESC";
@@ -46,43 +82,130 @@ public class BotService {
   private static final String STATE_BROADCAST = "ADMIN_BROADCAST";
   private static final String STATE_BROADCAST_CONFIRM = "ADMIN_BROADCAST_CONFIRM";
 
-  public BotService(Config config, Db db, VkApiClient vk, GroupActor actor) {
+  private static final String SUBSCRIBE_KEYBOARD = subscribeKeyboard();
+  private static final String REFRESH_KEYBOARD = refreshKeyboard();
+  private static final String ADMIN_MENU_KEYBOARD = adminMenuKeyboard();
+  private static final String EDIT_FIELD_KEYBOARD = editFieldKeyboard();
+  private static final String ADD_TYPE_KEYBOARD = addTypeKeyboard();
+  private static final String EDIT_ACTIVE_KEYBOARD = editActiveKeyboard();
+  private static final String BROADCAST_CONFIRM_KEYBOARD = broadcastConfirmKeyboard();
+
+  public BotService(Config config, Db db, VkApiClient vk, GroupActor actor, VkRateLimiter limiter) {
     this.config = config;
     this.db = db;
     this.vk = vk;
     this.actor = actor;
+    this.limiter = limiter;
+    BroadcastEngine broadcast = new BroadcastEngine(vk, actor, limiter, config.broadcastUseExecute);
+    this.broadcastWorker = new BroadcastWorker(db, broadcast,
+      (peerId, text) -> sendMessage(peerId, text, null, null), config.broadcastProgressInterval);
+    this.updateQueue = new UpdateQueue(config.updateQueueCapacity);
+    this.dedup = new DedupWindow(config.dedupWindow);
+    this.membership = new MembershipCache(config.membershipCacheTtl, config.membershipCacheSize);
+    this.reconciler = new SubscriptionReconciler(config, db, vk, actor, limiter, membership);
+    this.events = new EventSink(db, config.eventBatchSize, config.eventFlushMs);
+    this.catalog = new MagnetCatalog(db);
+    this.activity = new ActivityTracker(db);
+    this.adminSessions = new AdminSessions(db, config.adminSessionTtl);
+    this.router = buildRouter();
+  }
+
+  public void shutdown() {
+    if (callbackServer != null) {
+      callbackServer.stop();
+    }
+    if (ingestor != null) {
+      ingestor.stop();
+      join(ingestThread);
+    }
+    if (pumpThread != null) {
+      pumpThread.interrupt();
+      join(pumpThread);
+    }
+    if (dispatcher != null) {
+      dispatcher.shutdown(SHUTDOWN_TIMEOUT_MS);
+    }
+    events.close();
+    activity.close();
+    adminSessions.close();
+  }
+
+  private static void join(Thread t) {
+    try {
+      t.join(SHUTDOWN_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 
   public void run() {
+    dedup.addAll(db.loadHandledKeys(config.dedupWindow));
+    catalog.reload();
+    adminSessions.load();
+    adminSessions.start();
+    CursorTracker tracker = new CursorTracker(db);
+
+    dispatcher = new PeerDispatcher(config.dispatchThreads, config.dispatchShardCapacity, this::process);
+    dispatcher.start();
+    pumpThread = Thread.currentThread();
+    events.start();
+    activity.start(config.activityFlushInterval);
+    broadcastWorker.start();
+    reconciler.start();
+
+    metrics.register("updates", updateQueue::metrics);
+    metrics.register("dispatch", dispatcher::metrics);
+    metrics.register("vk_api", limiter::metrics);
+    metrics.register("membership", membership::metrics);
+    metrics.register("dedup", dedup::metrics);
+    metrics.register("db", db::metrics);
+    metrics.register("events", events::metrics);
+    metrics.register("catalog", catalog::metrics);
+    metrics.register("activity", activity::metrics);
+    metrics.register("admin_sessions", adminSessions::metrics);
+    metrics.register("commands", router::metrics);
+    metrics.register("replies", () -> "parts=" + replyParts.get() + " sends=" + sends.get());
+    metrics.start(config.metricsInterval);
+
+    if (config.callbackMode) {
+      callbackServer = new CallbackServer(config, updateQueue, tracker, HANDLED_TYPES);
+      callbackServer.start();
+    } else {
+      ingestor = new LongPollIngestor(config, db, vk, actor, limiter, updateQueue, tracker, HANDLED_TYPES);
+      ingestThread = new Thread(ingestor, "longpoll-ingest");
+      ingestThread.setDaemon(true);
+      ingestThread.start();
+    }
+
     while (true) {
       try {
-        GetLongPollServerResponse server = vk.groups().getLongPollServer(actor, config.groupId).execute();
-        String ts = server.getTs();
-        while (true) {
-          LongPollResponse response = longPoll.poll(server.getServer(), server.getKey(), ts, config.longPollWait);
-          if (response.failed != null) {
-            if (response.failed == 1) {
-              ts = response.ts;
-              continue;
-            }
-            break;
-          }
-          ts = response.ts;
-          if (response.updates == null) {
-            continue;
-          }
-          for (Update update : response.updates) {
-            handleUpdate(update);
-          }
-        }
-      } catch (Exception e) {
-        e.printStackTrace();
-        sleep(2000);
+        dispatcher.dispatch(updateQueue.take());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
       }
     }
   }
 
-  private void handleUpdate(Update update) {
+  private void process(Update update) {
+    long key = DedupWindow.key(update);
+    boolean fresh = key == 0 || dedup.add(key);
+    try {
+      if (fresh) {
+        handleUpdate(update, key);
+      }
+    } finally {
+      if (update.checkpoint != null) {
+        update.checkpoint.ack();
+      }
+    }
+  }
+
+  private void handleUpdate(Update update, long key) {
+    if ("group_join".equals(update.type) || "group_leave".equals(update.type)) {
+      handleMembershipEvent(update);
+      return;
+    }
     if (!"message_new".equals(update.type)) {
       return;
     }
@@ -91,12 +214,34 @@ public class BotService {
       return;
     }
 
-    int userId = msg.from_id;
+    UnitOfWork uow = new UnitOfWork(db, msg.from_id, config.adminIds.contains(msg.from_id));
+    uow.markHandled(key);
+    long now = Instant.now().getEpochSecond();
+    if (activity.touch(msg.from_id, now)) {
+      uow.touch(now);
+    }
+    ReplyBuffer buffer = replies.get();
+    buffer.open();
+    try {
+      handleMessage(uow, msg);
+    } finally {
+      try {
+        buffer.close();
+      } finally {
+        uow.commit();
+        if (uow.touched) {
+          activity.markKnown(uow.userId, uow.seenAt);
+        }
+      }
+    }
+  }
+
+  private void handleMessage(UnitOfWork uow, LpMessage msg) {
+    int userId = uow.userId;
     int peerId = msg.peer_id;
-    boolean isAdmin = config.adminIds.contains(userId);
-    db.upsertUser(userId, isAdmin);
+    boolean isAdmin = uow.isAdmin;
 
-    PayloadData payload = parsePayload(msg.payload);
+    PayloadData payload = PayloadDecoder.decode(msg.payload);
     String text = msg.text != null ? msg.text.trim() : "";
     if (isAdmin && (payload == null || payload.cmd == null)) {
       PayloadData fromText = adminPayloadFromText(text);
@@ -105,66 +250,87 @@ public class BotService {
       }
     }
 
-    AdminState adminState = isAdmin ? db.getAdminState(userId) : null;
-    if (isAdmin && adminState != null) {
-      if (handleAdminState(peerId, msg, text, payload, adminState)) {
+    AdminSession session = isAdmin ? adminSessions.get(userId) : null;
+    if (isAdmin && session != null) {
+      if (handleAdminState(peerId, msg, text, payload, session)) {
         return;
       }
     }
 
-    if (isAdmin && payload != null && payload.cmd != null && payload.cmd.startsWith("admin_")) {
-      if (handleAdminPayload(peerId, userId, payload)) {
-        return;
-      }
-      showAdminMenu(peerId);
+    String cmd = payload != null && payload.cmd != null ? payload.cmd : TEXT_COMMANDS.get(text.toLowerCase());
+    if (router.route(cmd, isAdmin, new MessageContext(uow, msg, text, payload))) {
       return;
     }
-
-    if (isAdmin && isAdminCommand(text, payload)) {
+    if (isAdmin && cmd != null && cmd.startsWith("admin_")) {
       showAdminMenu(peerId);
       return;
     }
 
-    if (isStart(text, payload)) {
-      handleStart(userId, peerId, msg);
-      return;
-    }
+    sendMessage(peerId, "Напишите /start, чтобы получить материалы.", null, null);
+  }
 
-    if (payload != null && "check_sub".equals(payload.cmd)) {
-      handleCheckSubscription(userId, peerId);
-      return;
-    }
+  private CommandRouter<MessageContext> buildRouter() {
+    return new CommandRouter<MessageContext>()
+      .on("start", false, ctx -> handleStart(ctx.uow, ctx.msg.peer_id, ctx.msg))
+      .on("check_sub", false, ctx -> handleCheckSubscription(ctx.uow, ctx.msg.peer_id))
+      .on("magnet", false, ctx -> handleMagnetSelect(ctx.uow, ctx.msg.peer_id, ctx.payload.id))
+      .on("list", false, this::handleListPage)
+      .on("admin_menu", true, ctx -> showAdminMenu(ctx.msg.peer_id))
+      .on("admin_add", true, ctx -> {
+        adminSessions.put(ctx.uow.userId, STATE_ADD_TITLE, new AdminSession());
+        sendMessage(ctx.msg.peer_id, "Введите название материала.", null, null);
+      })
+      .on("admin_edit", true, ctx -> startEditFlow(ctx.msg.peer_id, ctx.uow.userId))
+      .on("admin_delete", true, ctx -> startDeleteFlow(ctx.msg.peer_id, ctx.uow.userId))
+      .on("admin_link", true, ctx -> startLinkFlow(ctx.msg.peer_id, ctx.uow.userId))
+      .on("admin_stats", true, ctx -> showStats(ctx.msg.peer_id))
+      .on("admin_broadcast", true, ctx -> {
+        adminSessions.put(ctx.uow.userId, STATE_BROADCAST, new AdminSession());
+        sendMessage(ctx.msg.peer_id, "Отправьте текст и/или файл для рассылки.", null, null);
+      })
+      .on("admin_broadcast_stop", true, ctx -> {
+        int cancelled = db.cancelBroadcastJobs();
+        sendMessage(ctx.msg.peer_id, cancelled > 0 ? "Рассылка будет остановлена." : "Активных рассылок нет.", null, null);
+      });
+  }
 
-    if (payload != null && "magnet".equals(payload.cmd)) {
-      int magnetId = payload.id;
-      handleMagnetSelect(userId, peerId, magnetId);
-      return;
+  private void handleListPage(MessageContext ctx) {
+    int cursor = ctx.payload.cursor;
+    if (cursor == 0 && ctx.payload.page > 0) {
+      cursor = catalog.snapshot().cursorAt(true, ctx.payload.page * config.pageSize);
     }
+    showMagnetList(ctx.msg.peer_id, cursor);
+  }
 
-    if (payload != null && "list".equals(payload.cmd)) {
-      showMagnetList(peerId, payload.page);
+  private void handleMembershipEvent(Update update) {
+    int userId = update.object != null ? update.object.user_id : 0;
+    if (userId <= 0) {
       return;
     }
-
-    sendMessage(peerId, "Напишите /start, чтобы получить материалы.", null, null);
+    boolean member = "group_join".equals(update.type);
+    if (db.setSubscribed(userId, member)) {
+      membership.put(userId, member);
+    } else {
+      membership.invalidate(userId);
+    }
   }
 
-  private void handleStart(int userId, int peerId, LpMessage msg) {
-    db.logEvent(userId, "start", null);
+  private void handleStart(UnitOfWork uow, int peerId, LpMessage msg) {
+    int userId = uow.userId;
+    events.log(userId, "start", null);
 
     String ref = msg.ref;
     if (ref != null && !ref.isEmpty()) {
-      db.setPendingRef(userId, ref);
+      uow.setPendingRef(ref);
     }
 
-    boolean subscribed = isMember(userId);
-    db.setSubscribed(userId, subscribed);
+    boolean subscribed = isMember(uow, false);
     if (subscribed) {
-      db.logEvent(userId, "subscribed", null);
-      String pendingRef = getPendingRef(userId);
+      events.log(userId, "subscribed", null);
+      String pendingRef = uow.pendingRef();
       if (pendingRef != null) {
-        Magnet magnet = db.getMagnetByRef(pendingRef);
-        db.setPendingRef(userId, null);
+        Magnet magnet = catalog.snapshot().byRef(pendingRef);
+        uow.setPendingRef(null);
         if (magnet != null) {
           sendMagnet(peerId, userId, magnet);
           return;
@@ -176,15 +342,15 @@ public class BotService {
     }
   }
 
-  private void handleCheckSubscription(int userId, int peerId) {
-    boolean subscribed = isMember(userId);
-    db.setSubscribed(userId, subscribed);
+  private void handleCheckSubscription(UnitOfWork uow, int peerId) {
+    int userId = uow.userId;
+    boolean subscribed = isMember(uow, true);
     if (subscribed) {
-      db.logEvent(userId, "subscribed", null);
-      String pendingRef = getPendingRef(userId);
+      events.log(userId, "subscribed", null);
+      String pendingRef = uow.pendingRef();
       if (pendingRef != null) {
-        Magnet magnet = db.getMagnetByRef(pendingRef);
-        db.setPendingRef(userId, null);
+        Magnet magnet = catalog.snapshot().byRef(pendingRef);
+        uow.setPendingRef(null);
         if (magnet != null) {
           sendMagnet(peerId, userId, magnet);
           return;
@@ -192,18 +358,18 @@ public class BotService {
       }
       showMagnetList(peerId, 0);
     } else {
-      sendMessage(peerId, "Похоже, подписки пока нет. Подпишитесь на сообщество и нажмите «Проверить подписку».", subscribeKeyboard(), null);
+      sendMessage(peerId, "Похоже, подписки пока нет. Подпишитесь на сообщество и нажмите «Проверить подписку».", SUBSCRIBE_KEYBOARD, null);
     }
   }
 
-  private void handleMagnetSelect(int userId, int peerId, int magnetId) {
-    boolean subscribed = isMember(userId);
-    db.setSubscribed(userId, subscribed);
+  private void handleMagnetSelect(UnitOfWork uow, int peerId, int magnetId) {
+    int userId = uow.userId;
+    boolean subscribed = isMember(uow, false);
     if (!subscribed) {
       askToSubscribe(peerId);
       return;
     }
-    Magnet magnet = db.getMagnetById(magnetId);
+    Magnet magnet = catalog.snapshot().byId(magnetId);
     if (magnet == null || !magnet.isActive) {
       sendMessage(peerId, "Этот материал больше не доступен. Выберите другой.", null, null);
       showMagnetList(peerId, 0);
@@ -231,63 +397,66 @@ public class BotService {
           sendMessage(peerId, "Файл недоступен. Попробуйте позже или обратитесь к администратору.", null, null);
         }
       } else {
-        boolean sent = sendMessageSafe(peerId, text.toString(), null, magnet.attachment);
-        if (!sent) {
-          if (magnet.url != null && !magnet.url.isEmpty()) {
-            sendMessage(peerId, "Не удалось отправить файл. Вот ссылка на скачивание:\n" + magnet.url, null, null);
-          } else {
-            sendMessage(peerId, "Не удалось отправить файл. Попробуйте позже или обратитесь к администратору.", null, null);
-          }
-        }
+        String fallback = magnet.url != null && !magnet.url.isEmpty()
+          ? "Не удалось отправить файл. Вот ссылка на скачивание:\n" + magnet.url
+          : "Не удалось отправить файл. Попробуйте позже или обратитесь к администратору.";
+        reply(peerId, text.toString(), null, magnet.attachment, fallback);
       }
     }
-    sendMessage(peerId, "Если хотите посмотреть другие материалы, нажмите «Обновить материалы».", refreshKeyboard(), null);
-    db.logEvent(userId, "magnet_sent", magnet.id);
+    sendMessage(peerId, "Если хотите посмотреть другие материалы, нажмите «Обновить материалы».", REFRESH_KEYBOARD, null);
+    events.log(userId, "magnet_sent", magnet.id);
   }
 
-  private void showMagnetList(int peerId, int page) {
-    int total = db.countMagnets(true);
-    if (total == 0) {
+  private void showMagnetList(int peerId, int cursor) {
+    MagnetCatalog.Snapshot snapshot = catalog.snapshot();
+    if (snapshot.count(true) == 0) {
       sendMessage(peerId, "Пока нет доступных материалов. Попробуйте позже.", null, null);
       return;
     }
-    int offset = page * config.pageSize;
-    List<Magnet> magnets = db.listMagnets(true, offset, config.pageSize);
+    MagnetCatalog.Page page = snapshot.page(true, cursor, config.pageSize);
+    String keyboard = page.aligned
+      ? snapshot.pageKeyboard(cursor, c -> magnetPageKeyboard(page))
+      : magnetPageKeyboard(page);
+    sendMessage(peerId, "Выберите материал:", keyboard, null);
+  }
+
+  private String magnetPageKeyboard(MagnetCatalog.Page page) {
     List<List<Button>> rows = new ArrayList<>();
-    for (Magnet m : magnets) {
+    for (Magnet m : page.items) {
       rows.add(KeyboardBuilder.rows(
-        KeyboardBuilder.button(m.title, KeyboardBuilder.payload("magnet", "id", m.id), "primary")
+        KeyboardBuilder.button(safeLabel(m.title), KeyboardBuilder.payload("magnet", "id", m.id), "primary")
       ));
     }
 
-    int lastPage = (total - 1) / config.pageSize;
-    if (lastPage > 0) {
-      List<Button> nav = new ArrayList<>();
-      if (page > 0) {
-        nav.add(KeyboardBuilder.button("<< Назад", KeyboardBuilder.payload("list", "page", page - 1), "secondary"));
-      }
-      if (page < lastPage) {
-        nav.add(KeyboardBuilder.button("Дальше >>", KeyboardBuilder.payload("list", "page", page + 1), "secondary"));
-      }
-      if (!nav.isEmpty()) {
-        rows.add(nav);
-      }
+    List<Button> nav = navRow(page, "list");
+    if (!nav.isEmpty()) {
+      rows.add(nav);
     }
 
     rows.add(KeyboardBuilder.rows(
-      KeyboardBuilder.button("Обновить материалы", KeyboardBuilder.payload("list", "page", 0), "secondary")
+      KeyboardBuilder.button("Обновить материалы", KeyboardBuilder.payload("list"), "secondary")
     ));
 
-    String keyboard = KeyboardBuilder.keyboard(rows, false);
-    sendMessage(peerId, "Выберите материал:", keyboard, null);
+    return KeyboardBuilder.keyboard(rows, false);
+  }
+
+  private static List<Button> navRow(MagnetCatalog.Page page, String cmd) {
+    List<Button> nav = new ArrayList<>();
+    if (page.hasPrev()) {
+      nav.add(KeyboardBuilder.button("<< Назад", KeyboardBuilder.payload(cmd, "cursor", page.prevCursor), "secondary"));
+    }
+    if (page.hasNext()) {
+      nav.add(KeyboardBuilder.button("Дальше >>", KeyboardBuilder.payload(cmd, "cursor", page.nextCursor), "secondary"));
+    }
+    return nav;
   }
 
   private void askToSubscribe(int peerId) {
     String text = "Чтобы получить материалы, подпишитесь на наше сообщество. После подписки нажмите «Проверить подписку».";
-    sendMessage(peerId, text, subscribeKeyboard(), null);
+    sendMessage(peerId, text, SUBSCRIBE_KEYBOARD, null);
   }
 
-  private String subscribeKeyboard() {
+  private static String subscribeKeyboard() {
     List<List<Button>> rows = new ArrayList<>();
     rows.add(KeyboardBuilder.rows(
       KeyboardBuilder.button("Проверить подписку", KeyboardBuilder.payload("check_sub"), "positive")
@@ -295,20 +464,27 @@ public class BotService {
     return KeyboardBuilder.keyboard(rows, true);
   }
 
-  private String refreshKeyboard() {
+  private static String refreshKeyboard() {
     List<List<Button>> rows = new ArrayList<>();
     rows.add(KeyboardBuilder.rows(
-      KeyboardBuilder.button("Обновить материалы", KeyboardBuilder.payload("list", "page", 0), "secondary")
+      KeyboardBuilder.button("Обновить материалы", KeyboardBuilder.payload("list"), "secondary")
     ));
     return KeyboardBuilder.keyboard(rows, false);
   }
 
-  private boolean isMember(int userId) {
+  private boolean isMember(UnitOfWork uow, boolean forceCheck) {
+    int userId = uow.userId;
+    Boolean cached = forceCheck ? null : membership.get(userId);
+    if (cached != null) {
+      return cached;
+    }
     try {
-      IsMemberResponse resp = vk.groups().isMember(actor, String.valueOf(config.groupId))
-        .userId(userId)
-        .execute();
-      return resp == IsMemberResponse.YES;
+      IsMemberResponse resp = limiter.execute(Lane.INTERACTIVE, vk.groups().isMember(actor, String.valueOf(config.groupId))
+        .userId(userId));
+      boolean member = resp == IsMemberResponse.YES;
+      uow.setSubscribed(member);
+      membership.put(userId, member);
+      return member;
     } catch (Exception e) {
       e.printStackTrace();
       return false;
@@ -316,6 +492,10 @@ public class BotService {
   }
 
   private void showAdminMenu(int peerId) {
+    sendMessage(peerId, "Админ-панель. Выберите действие:", ADMIN_MENU_KEYBOARD, null);
+  }
+
+  private static String adminMenuKeyboard() {
     List<List<Button>> rows = new ArrayList<>();
     rows.add(KeyboardBuilder.rows(
       KeyboardBuilder.button("➕ Добавить", KeyboardBuilder.payload("admin_add"), "positive"),
@@ -329,56 +509,46 @@ public class BotService {
       KeyboardBuilder.button("📊 Статистика", KeyboardBuilder.payload("admin_stats"), "secondary"),
       KeyboardBuilder.button("📣 Рассылка", KeyboardBuilder.payload("admin_broadcast"), "primary")
     ));
-
-    String keyboard = KeyboardBuilder.keyboard(rows, false);
-    sendMessage(peerId, "Админ-панель. Выберите действие:", keyboard, null);
+    rows.add(KeyboardBuilder.rows(
+      KeyboardBuilder.button("⛔ Остановить рассылку", KeyboardBuilder.payload("admin_broadcast_stop"), "negative")
+    ));
+    return KeyboardBuilder.keyboard(rows, false);
   }
 
-  private boolean handleAdminState(int peerId, LpMessage msg, String text, PayloadData payload, AdminState state) {
-    String st = state.state;
-    JsonObject data = state.data != null ? JsonParser.parseString(state.data).getAsJsonObject() : new JsonObject();
+  private boolean handleAdminState(int peerId, LpMessage msg, String text, PayloadData payload, AdminSession session) {
+    String st = session.state;
 
     if (STATE_ADD_TITLE.equals(st)) {
       if (text.isEmpty()) {
         sendMessage(peerId, "Введите название материала.", null, null);
         return true;
       }
-      data.addProperty("title", text);
-      db.setAdminState(msg.from_id, STATE_ADD_DESC, data);
+      session.title = text;
+      adminSessions.put(msg.from_id, STATE_ADD_DESC, session);
       sendMessage(peerId, "Кратко опишите материал (или отправьте «-»).", null, null);
       return true;
     }
 
     if (STATE_ADD_DESC.equals(st)) {
-      data.addProperty("description", "-".equals(text) ? "" : text);
-      db.setAdminState(msg.from_id, STATE_ADD_TYPE, data);
+      session.description = "-".equals(text) ? "" : text;
+      adminSessions.put(msg.from_id, STATE_ADD_TYPE, session);
 
-      List<List<Button>> rows = new ArrayList<>();
-      rows.add(KeyboardBuilder.rows(
-        KeyboardBuilder.button("Файл", KeyboardBuilder.payload("admin_add_type", "type", "DOC"), "primary"),
-        KeyboardBuilder.button("Ссылка", KeyboardBuilder.payload("admin_add_type", "type", "URL"), "secondary")
-      ));
-      sendMessage(peerId, "Выберите тип материала:", KeyboardBuilder.keyboard(rows, false), null);
+      sendMessage(peerId, "Выберите тип материала:", ADD_TYPE_KEYBOARD, null);
       return true;
     }
 
     if (STATE_ADD_TYPE.equals(st)) {
       if (payload == null || !"admin_add_type".equals(payload.cmd)) {
-        List<List<Button>> rows = new ArrayList<>();
-        rows.add(KeyboardBuilder.rows(
-          KeyboardBuilder.button("Файл", KeyboardBuilder.payload("admin_add_type", "type", "DOC"), "primary"),
-          KeyboardBuilder.button("Ссылка", KeyboardBuilder.payload("admin_add_type", "type", "URL"), "secondary")
-        ));
-        sendMessage(peerId, "Выберите тип через кнопки ниже.", KeyboardBuilder.keyboard(rows, false), null);
+        sendMessage(peerId, "Выберите тип через кнопки ниже.", ADD_TYPE_KEYBOARD, null);
         return true;
       }
       String type = payload.type;
-      data.addProperty("type", type);
+      session.type = type;
       if ("DOC".equalsIgnoreCase(type)) {
-        db.setAdminState(msg.from_id, STATE_ADD_FILE, data);
+        adminSessions.put(msg.from_id, STATE_ADD_FILE, session);
         sendMessage(peerId, "Отправьте файл документом (PDF/архив/видео до 200 МБ).", null, null);
       } else {
-        db.setAdminState(msg.from_id, STATE_ADD_URL, data);
+        adminSessions.put(msg.from_id, STATE_ADD_URL, session);
         sendMessage(peerId, "Пришлите ссылку на материал.", null, null);
       }
       return true;
@@ -397,15 +567,15 @@ public class BotService {
       System.out.println("[DEBUG] add-file: attachment=" + info.attachment + " url=" + info.url +
         " msgId=" + msg.id + " convMsgId=" + msg.conversation_message_id + " peerId=" + msg.peer_id);
       Magnet m = new Magnet();
-      m.title = data.get("title").getAsString();
-      m.description = data.get("description").getAsString();
+      m.title = session.title;
+      m.description = session.description;
       m.type = "DOC";
       m.attachment = info.attachment;
       m.url = info.url;
       m.refCode = RefCode.generate();
       m.isActive = true;
-      int id = db.createMagnet(m);
-      db.clearAdminState(msg.from_id);
+      int id = catalog.create(m);
+      adminSessions.clear(msg.from_id);
       sendMessage(peerId, "Материал добавлен. ID: " + id, null, null);
       boolean ok = sendMessageSafe(peerId, "Проверка выдачи файла (должен прийти документ).", null, m.attachment);
       if (!ok) {
@@ -420,15 +590,15 @@ public class BotService {
         return true;
       }
       Magnet m = new Magnet();
-      m.title = data.get("title").getAsString();
-      m.description = data.get("description").getAsString();
+      m.title = session.title;
+      m.description = session.description;
       m.type = "URL";
       m.url = text;
       m.attachment = null;
       m.refCode = RefCode.generate();
       m.isActive = true;
-      int id = db.createMagnet(m);
-      db.clearAdminState(msg.from_id);
+      int id = catalog.create(m);
+      adminSessions.clear(msg.from_id);
       sendMessage(peerId, "Материал добавлен. ID: " + id, null, null);
       return true;
     }
@@ -436,11 +606,11 @@ public class BotService {
     if (STATE_EDIT_SELECT.equals(st)) {
       Integer id = extractId(payload, text, "admin_edit_select");
       if (id == null) {
-        showAdminMagnetList(peerId, "Выберите материал для редактирования:", "admin_edit_select");
+        showAdminMagnetList(peerId, "Выберите материал для редактирования:", "admin_edit_select", pickerCursor(payload));
         return true;
       }
-      data.addProperty("id", id);
-      db.setAdminState(msg.from_id, STATE_EDIT_FIELD, data);
+      session.magnetId = id;
+      adminSessions.put(msg.from_id, STATE_EDIT_FIELD, session);
       showEditFieldMenu(peerId);
       return true;
     }
@@ -450,19 +620,14 @@ public class BotService {
         sendMessage(peerId, "Выберите поле для редактирования.", null, null);
         return true;
       }
-      data.addProperty("field", payload.field);
-      db.setAdminState(msg.from_id, STATE_EDIT_VALUE, data);
+      session.field = payload.field;
+      adminSessions.put(msg.from_id, STATE_EDIT_VALUE, session);
 
       String field = payload.field;
       if ("attachment".equals(field)) {
         sendMessage(peerId, "Отправьте новый файл документом.", null, null);
       } else if ("active".equals(field)) {
-        List<List<Button>> rows = new ArrayList<>();
-        rows.add(KeyboardBuilder.rows(
-          KeyboardBuilder.button("Активен", KeyboardBuilder.payload("admin_edit_active", "value", 1), "positive"),
-          KeyboardBuilder.button("Скрыт", KeyboardBuilder.payload("admin_edit_active", "value", 0), "negative")
-        ));
-        sendMessage(peerId, "Выберите статус:", KeyboardBuilder.keyboard(rows, true), null);
+        sendMessage(peerId, "Выберите статус:", EDIT_ACTIVE_KEYBOARD, null);
       } else {
         sendMessage(peerId, "Введите новое значение.", null, null);
       }
@@ -470,14 +635,15 @@ public class BotService {
     }
 
     if (STATE_EDIT_VALUE.equals(st)) {
-      int id = data.get("id").getAsInt();
-      String field = data.get("field").getAsString();
-      Magnet m = db.getMagnetById(id);
-      if (m == null) {
-        db.clearAdminState(msg.from_id);
+      int id = session.magnetId;
+      String field = session.field;
+      Magnet current = catalog.snapshot().byId(id);
+      if (current == null) {
+        adminSessions.clear(msg.from_id);
         sendMessage(peerId, "Материал не найден.", null, null);
         return true;
       }
+      Magnet m = current.copy();
 
       if ("attachment".equals(field)) {
         DocInfo info = extractDocInfo(msg);
@@ -515,8 +681,8 @@ public class BotService {
         m.isActive = payload.value == 1;
       }
 
-      db.updateMagnet(m);
-      db.clearAdminState(msg.from_id);
+      catalog.update(m);
+      adminSessions.clear(msg.from_id);
       sendMessage(peerId, "Готово. Материал обновлен.", null, null);
       return true;
     }
@@ -524,11 +690,11 @@ public class BotService {
     if (STATE_DELETE_SELECT.equals(st)) {
       Integer id = extractId(payload, text, "admin_delete_select");
       if (id == null) {
-        showAdminMagnetList(peerId, "Выберите материал для удаления:", "admin_delete_select");
+        showAdminMagnetList(peerId, "Выберите материал для удаления:", "admin_delete_select", pickerCursor(payload));
         return true;
       }
-      db.deleteMagnet(id);
-      db.clearAdminState(msg.from_id);
+      catalog.delete(id);
+      adminSessions.clear(msg.from_id);
       sendMessage(peerId, "Материал удален.", null, null);
       return true;
     }
@@ -536,11 +702,11 @@ public class BotService {
     if (STATE_LINK_SELECT.equals(st)) {
       Integer id = extractId(payload, text, "admin_link_select");
       if (id == null) {
-        showAdminMagnetList(peerId, "Выберите материал для ссылки:", "admin_link_select");
+        showAdminMagnetList(peerId, "Выберите материал для ссылки:", "admin_link_select", pickerCursor(payload));
         return true;
       }
-      Magnet m = db.getMagnetById(id);
-      db.clearAdminState(msg.from_id);
+      Magnet m = catalog.snapshot().byId(id);
+      adminSessions.clear(msg.from_id);
       if (m == null) {
         sendMessage(peerId, "Материал не найден.", null, null);
         return true;
@@ -556,17 +722,12 @@ public class BotService {
         sendMessage(peerId, "Отправьте текст и/или файл для рассылки.", null, null);
         return true;
       }
-      data.addProperty("text", text);
+      session.text = text;
       if (attachment != null) {
-        data.addProperty("attachment", attachment);
+        session.attachment = attachment;
       }
-      db.setAdminState(msg.from_id, STATE_BROADCAST_CONFIRM, data);
-      List<List<Button>> rows = new ArrayList<>();
-      rows.add(KeyboardBuilder.rows(
-        KeyboardBuilder.button("Отправить", KeyboardBuilder.payload("admin_broadcast_send"), "positive"),
-        KeyboardBuilder.button("Отмена", KeyboardBuilder.payload("admin_broadcast_cancel"), "negative")
-      ));
-      sendMessage(peerId, "Подтвердите рассылку:", KeyboardBuilder.keyboard(rows, true), null);
+      adminSessions.put(msg.from_id, STATE_BROADCAST_CONFIRM, session);
+      sendMessage(peerId, "Подтвердите рассылку:", BROADCAST_CONFIRM_KEYBOARD, null);
       return true;
     }
 
@@ -576,97 +737,86 @@ public class BotService {
         return true;
       }
       if ("admin_broadcast_cancel".equals(payload.cmd)) {
-        db.clearAdminState(msg.from_id);
+        adminSessions.clear(msg.from_id);
         sendMessage(peerId, "Рассылка отменена.", null, null);
         return true;
       }
-      String textMsg = data.has("text") ? data.get("text").getAsString() : "";
-      String attachment = data.has("attachment") ? data.get("attachment").getAsString() : null;
-      db.clearAdminState(msg.from_id);
-      doBroadcast(textMsg, attachment, peerId);
-      return true;
-    }
-
-    if (payload != null && handleAdminPayload(peerId, msg.from_id, payload)) {
+      String textMsg = session.text != null ? session.text : "";
+      String attachment = session.attachment;
+      adminSessions.clear(msg.from_id);
+      BroadcastJob job = new BroadcastJob();
+      job.adminPeerId = peerId;
+      job.text = textMsg;
+      job.attachment = attachment;
+      job.onlySubscribed = config.broadcastOnlySubscribed;
+      job.minLastSeen = config.broadcastMaxInactiveDays > 0
+        ? Instant.now().getEpochSecond() - TimeUnit.DAYS.toSeconds(config.broadcastMaxInactiveDays)
+        : 0;
+      job.total = db.countAudience(job.onlySubscribed, job.minLastSeen);
+      int jobId = db.createBroadcastJob(job);
+      broadcastWorker.wake();
+      sendMessage(peerId, "Рассылка #" + jobId + " поставлена в очередь. Бот пришлёт отчёт о ходе отправки.", null, null);
       return true;
     }
 
     return false;
   }
 
-  private boolean handleAdminPayload(int peerId, int userId, PayloadData payload) {
-    if (payload == null || payload.cmd == null) {
-      return false;
-    }
-    switch (payload.cmd) {
-      case "admin_add":
-        db.setAdminState(userId, STATE_ADD_TITLE, new JsonObject());
-        sendMessage(peerId, "Введите название материала.", null, null);
-        return true;
-      case "admin_edit":
-        startEditFlow(peerId, userId);
-        return true;
-      case "admin_delete":
-        startDeleteFlow(peerId, userId);
-        return true;
-      case "admin_link":
-        startLinkFlow(peerId, userId);
-        return true;
-      case "admin_stats":
-        showStats(peerId);
-        return true;
-      case "admin_broadcast":
-        db.setAdminState(userId, STATE_BROADCAST, new JsonObject());
-        sendMessage(peerId, "Отправьте текст и/или файл для рассылки.", null, null);
-        return true;
-      default:
-        return false;
-    }
-  }
-
   private void startEditFlow(int peerId, int userId) {
-    int total = db.countMagnets(false);
+    int total = catalog.snapshot().count(false);
     if (total == 0) {
       sendMessage(peerId, "Материалов пока нет.", null, null);
       return;
     }
-    db.setAdminState(userId, STATE_EDIT_SELECT, new JsonObject());
-    showAdminMagnetList(peerId, "Выберите материал для редактирования:", "admin_edit_select");
+    adminSessions.put(userId, STATE_EDIT_SELECT, new AdminSession());
+    showAdminMagnetList(peerId, "Выберите материал для редактирования:", "admin_edit_select", 0);
   }
 
   private void startDeleteFlow(int peerId, int userId) {
-    int total = db.countMagnets(false);
+    int total = catalog.snapshot().count(false);
     if (total == 0) {
       sendMessage(peerId, "Материалов пока нет.", null, null);
       return;
     }
-    db.setAdminState(userId, STATE_DELETE_SELECT, new JsonObject());
-    showAdminMagnetList(peerId, "Выберите материал для удаления:", "admin_delete_select");
+    adminSessions.put(userId, STATE_DELETE_SELECT, new AdminSession());
+    showAdminMagnetList(peerId, "Выберите материал для удаления:", "admin_delete_select", 0);
   }
 
   private void startLinkFlow(int peerId, int userId) {
-    int total = db.countMagnets(false);
+    int total = catalog.snapshot().count(false);
     if (total == 0) {
       sendMessage(peerId, "Материалов пока нет.", null, null);
       return;
     }
-    db.setAdminState(userId, STATE_LINK_SELECT, new JsonObject());
-    showAdminMagnetList(peerId, "Выберите материал для ссылки:", "admin_link_select");
+    adminSessions.put(userId, STATE_LINK_SELECT, new AdminSession());
+    showAdminMagnetList(peerId, "Выберите материал для ссылки:", "admin_link_select", 0);
   }
 
-  private void showAdminMagnetList(int peerId, String title, String cmd) {
-    List<Magnet> magnets = db.listMagnets(false, 0, 20);
+  private void showAdminMagnetList(int peerId, String title, String cmd, int cursor) {
+    MagnetCatalog.Page page = catalog.snapshot().page(false, cursor, KeyboardBuilder.MAX_ROWS - 1);
     List<List<Button>> rows = new ArrayList<>();
-    for (Magnet m : magnets) {
+    for (Magnet m : page.items) {
       String label = safeLabel(m.id + ". " + m.title);
       rows.add(KeyboardBuilder.rows(
         KeyboardBuilder.button(label, KeyboardBuilder.payload(cmd, "id", m.id), "primary")
       ));
     }
+    List<Button> nav = navRow(page, "admin_page");
+    if (!nav.isEmpty()) {
+      rows.add(nav);
+    }
     sendMessage(peerId, title, KeyboardBuilder.keyboard(rows, false), null);
   }
 
+  private static int pickerCursor(PayloadData payload) {
+    return payload != null && "admin_page".equals(payload.cmd) ? payload.cursor : 0;
+  }
+
   private void showEditFieldMenu(int peerId) {
+    sendMessage(peerId, "Что изменить?", EDIT_FIELD_KEYBOARD, null);
+  }
+
+  private static String editFieldKeyboard() {
     List<List<Button>> rows = new ArrayList<>();
     rows.add(KeyboardBuilder.rows(
       KeyboardBuilder.button("Название", KeyboardBuilder.payload("admin_edit_field", "field", "title"), "primary"),
@@ -679,7 +829,34 @@ public class BotService {
     rows.add(KeyboardBuilder.rows(
       KeyboardBuilder.button("Активность", KeyboardBuilder.payload("admin_edit_field", "field", "active"), "secondary")
     ));
-    sendMessage(peerId, "Что изменить?", KeyboardBuilder.keyboard(rows, false), null);
+    return KeyboardBuilder.keyboard(rows, false);
+  }
+
+  private static String addTypeKeyboard() {
+    List<List<Button>> rows = new ArrayList<>();
+    rows.add(KeyboardBuilder.rows(
+      KeyboardBuilder.button("Файл", KeyboardBuilder.payload("admin_add_type", "type", "DOC"), "primary"),
+      KeyboardBuilder.button("Ссылка", KeyboardBuilder.payload("admin_add_type", "type", "URL"), "secondary")
+    ));
+    return KeyboardBuilder.keyboard(rows, false);
+  }
+
+  private static String editActiveKeyboard() {
+    List<List<Button>> rows = new ArrayList<>();
+    rows.add(KeyboardBuilder.rows(
+      KeyboardBuilder.button("Активен", KeyboardBuilder.payload("admin_edit_active", "value", 1), "positive"),
+      KeyboardBuilder.button("Скрыт", KeyboardBuilder.payload("admin_edit_active", "value", 0), "negative")
+    ));
+    return KeyboardBuilder.keyboard(rows, true);
+  }
+
+  private static String broadcastConfirmKeyboard() {
+    List<List<Button>> rows = new ArrayList<>();
+    rows.add(KeyboardBuilder.rows(
+      KeyboardBuilder.button("Отправить", KeyboardBuilder.payload("admin_broadcast_send"), "positive"),
+      KeyboardBuilder.button("Отмена", KeyboardBuilder.payload("admin_broadcast_cancel"), "negative")
+    ));
+    return KeyboardBuilder.keyboard(rows, true);
   }
 
   private void showStats(int peerId) {
@@ -704,37 +881,6 @@ public class BotService {
     sendMessage(peerId, sb.toString(), null, null);
   }
 
-  private void doBroadcast(String text, String attachment, int adminPeerId) {
-    List<Integer> users = db.listAllUsers();
-    int sent = 0;
-    for (int userId : users) {
-      try {
-        sendMessage(userId, text, null, attachment);
-        sent++;
-      } catch (Exception e) {
-        e.printStackTrace();
-      }
-      sleep(60);
-    }
-    sendMessage(adminPeerId, "Рассылка завершена. Отправлено: " + sent, null, null);
-  }
-
-  private boolean isAdminCommand(String text, PayloadData payload) {
-    String t = text.toLowerCase();
-    if ("/admin".equals(t) || "админ".equals(t) || "admin".equals(t)) {
-      return true;
-    }
-    return payload != null && payload.cmd != null && payload.cmd.startsWith("admin_");
-  }
-
-  private boolean isStart(String text, PayloadData payload) {
-    String t = text.toLowerCase();
-    if ("/start".equals(t) || "start".equals(t) || "старт".equals(t) || "начать".equals(t) || "меню".equals(t)) {
-      return true;
-    }
-    return payload != null && Objects.equals(payload.cmd, "start");
-  }
-
   private PayloadData adminPayloadFromText(String text) {
     if (text == null) {
       return null;
@@ -755,6 +901,9 @@ public class BotService {
     if (t.contains("статист")) {
       return payload("admin_stats");
     }
+    if (t.contains("останов")) {
+      return payload("admin_broadcast_stop");
+    }
     if (t.contains("рассыл")) {
       return payload("admin_broadcast");
     }
@@ -779,37 +928,6 @@ public class BotService {
     return trimmed.substring(0, 37) + "...";
   }
 
-  private PayloadData parsePayload(String payload) {
-    if (payload == null || payload.isEmpty()) {
-      return null;
-    }
-    try {
-      JsonObject obj = JsonParser.parseString(payload).getAsJsonObject();
-      PayloadData pd = new PayloadData();
-      if (obj.has("cmd")) {
-        pd.cmd = obj.get("cmd").getAsString();
-      }
-      if (obj.has("id")) {
-        pd.id = obj.get("id").getAsInt();
-      }
-      if (obj.has("page")) {
-        pd.page = obj.get("page").getAsInt();
-      }
-      if (obj.has("type")) {
-        pd.type = obj.get("type").getAsString();
-      }
-      if (obj.has("field")) {
-        pd.field = obj.get("field").getAsString();
-      }
-      if (obj.has("value")) {
-        pd.value = obj.get("value").getAsInt();
-      }
-      return pd;
-    } catch (Exception e) {
-      return null;
-    }
-  }
-
   private Integer extractId(PayloadData payload, String text, String expectedCmd) {
     if (payload != null && expectedCmd.equals(payload.cmd)) {
       return payload.id;
@@ -865,9 +983,8 @@ public class BotService {
 
   private DocInfo extractDocInfoFromApi(int messageId) {
     try {
-      var resp = vk.messages().getById(actor, messageId)
-        .groupId(config.groupId)
-        .execute();
+      var resp = limiter.execute(Lane.INTERACTIVE, vk.messages().getById(actor, messageId)
+        .groupId(config.groupId));
       if (resp.getItems() == null || resp.getItems().isEmpty()) {
         return null;
       }
@@ -898,9 +1015,8 @@ public class BotService {
 
   private DocInfo extractDocInfoFromConversation(int peerId, int conversationMessageId) {
     try {
-      var resp = vk.messages().getByConversationMessageId(actor, peerId, conversationMessageId)
-        .groupId(config.groupId)
-        .execute();
+      var resp = limiter.execute(Lane.INTERACTIVE, vk.messages().getByConversationMessageId(actor, peerId, conversationMessageId)
+        .groupId(config.groupId));
       if (resp.getItems() == null || resp.getItems().isEmpty()) {
         return null;
       }
@@ -937,9 +1053,8 @@ public class BotService {
     File tmp = null;
     try {
       tmp = downloadToTemp(info.url, fileName);
-      var upload = vk.docs().getMessagesUploadServer(actor)
-        .peerId(peerId)
-        .execute();
+      var upload = limiter.execute(Lane.INTERACTIVE, vk.docs().getMessagesUploadServer(actor)
+        .peerId(peerId));
 
       RequestBody fileBody = RequestBody.create(tmp, MediaType.parse("application/octet-stream"));
       MultipartBody requestBody = new MultipartBody.Builder()
@@ -963,9 +1078,8 @@ public class BotService {
           System.out.println("[DEBUG] upload response missing file");
           return null;
         }
-        var save = vk.docs().save(actor, ur.file)
-          .title(fileName)
-          .execute();
+        var save = limiter.execute(Lane.INTERACTIVE, vk.docs().save(actor, ur.file)
+          .title(fileName));
         Doc doc = save.getDoc();
         if (doc == null) {
           return null;
@@ -1019,12 +1133,16 @@ public class BotService {
     return "https://vk.me/club" + config.groupId + "?ref=" + magnet.refCode;
   }
 
-  private String getPendingRef(int userId) {
-    User u = db.getUser(userId);
-    return u != null ? u.pendingRef : null;
+  private boolean sendMessageSafe(int peerId, String text, String keyboard, String attachment) {
+    ReplyBuffer buffer = replies.get();
+    if (buffer.isOpen()) {
+      buffer.drain();
+    }
+    return sendMessageSafe(Lane.INTERACTIVE, peerId, text, keyboard, attachment);
   }
 
-  private boolean sendMessageSafe(int peerId, String text, String keyboard, String attachment) {
+  private boolean sendMessageSafe(Lane lane, int peerId, String text, String keyboard, String attachment) {
+    sends.incrementAndGet();
     try {
       int randomId = ThreadLocalRandom.current().nextInt();
       var query = vk.messages().send(actor)
@@ -1038,7 +1156,7 @@ public class BotService {
         System.out.println("[DEBUG] send: peer=" + peerId + " attachment=" + attachment);
         query.attachment(attachment);
       }
-      query.execute();
+      limiter.execute(lane, query);
       return true;
     } catch (Exception e) {
       e.printStackTrace();
@@ -1047,22 +1165,41 @@ public class BotService {
   }
 
   private void sendMessage(int peerId, String text, String keyboard, String attachment) {
-    sendMessageSafe(peerId, text, keyboard, attachment);
+    reply(peerId, text, keyboard, attachment, null);
   }
 
-  private void sleep(long ms) {
-    try {
-      Thread.sleep(ms);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
+  private void reply(int peerId, String text, String keyboard, String attachment, String fallback) {
+    replyParts.incrementAndGet();
+    ReplyBuffer buffer = replies.get();
+    if (buffer.isOpen()) {
+      buffer.add(peerId, text, keyboard, attachment, fallback);
+      return;
+    }
+    if (!sendMessageSafe(peerId, text, keyboard, attachment) && attachment != null && fallback != null) {
+      sendMessageSafe(peerId, fallback, keyboard, null);
     }
   }
 }
 
+class MessageContext {
+  final UnitOfWork uow;
+  final LpMessage msg;
+  final String text;
+  final PayloadData payload;
+
+  MessageContext(UnitOfWork uow, LpMessage msg, String text, PayloadData payload) {
+    this.uow = uow;
+    this.msg = msg;
+    this.text = text;
+    this.payload = payload;
+  }
+}
+
 class PayloadData {
   String cmd;
   int id;
   int page;
+  int cursor;
   String type;
   String field;
   int value;
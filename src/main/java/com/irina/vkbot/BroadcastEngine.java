@@ -0,0 +1,135 @@
+package com.irina.vkbot;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.irina.vkbot.VkRateLimiter.Lane;
+import com.vk.api.sdk.client.AbstractQueryBuilder;
+import com.vk.api.sdk.client.VkApiClient;
+import com.vk.api.sdk.client.actors.GroupActor;
+import com.vk.api.sdk.queries.messages.MessagesSendQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BroadcastEngine {
+  static final int PEERS_PER_SEND = 100;
+  static final int SENDS_PER_EXECUTE = 25;
+
+  private final VkApiClient vk;
+  private final GroupActor actor;
+  private final VkRateLimiter limiter;
+  private final boolean useExecute;
+
+  public BroadcastEngine(VkApiClient vk, GroupActor actor, VkRateLimiter limiter, boolean useExecute) {
+    this.vk = vk;
+    this.actor = actor;
+    this.limiter = limiter;
+    this.useExecute = useExecute;
+  }
+
+  public BroadcastResult deliver(int[] recipients, String text, String attachment, int jobId) {
+    BroadcastResult result = new BroadcastResult();
+    List<Integer[]> batches = new ArrayList<>();
+    for (int i = 0; i < recipients.length; i += PEERS_PER_SEND) {
+      int end = Math.min(i + PEERS_PER_SEND, recipients.length);
+      Integer[] batch = new Integer[end - i];
+      for (int j = i; j < end; j++) {
+        batch[j - i] = recipients[j];
+      }
+      batches.add(batch);
+    }
+    if (!useExecute) {
+      for (Integer[] batch : batches) {
+        sendBatch(batch.length, sendQuery(batch, text, attachment, jobId), result);
+      }
+      return result;
+    }
+    for (int i = 0; i < batches.size(); i += SENDS_PER_EXECUTE) {
+      executeBatches(batches.subList(i, Math.min(i + SENDS_PER_EXECUTE, batches.size())), text, attachment, jobId, result);
+    }
+    return result;
+  }
+
+  private void sendBatch(int size, MessagesSendQuery query, BroadcastResult result) {
+    try {
+      limiter.acquire(Lane.BULK);
+      JsonObject body = JsonParser.parseString(query.executeAsString()).getAsJsonObject();
+      if (body.has("error")) {
+        throw new IllegalStateException("messages.send failed: " + body.get("error"));
+      }
+      JsonElement response = body.get("response");
+      int delivered = response != null && response.isJsonArray() ? countDelivered(response.getAsJsonArray()) : 0;
+      result.add(delivered, size - delivered);
+    } catch (Exception e) {
+      e.printStackTrace();
+      result.add(0, size);
+    }
+  }
+
+  private void executeBatches(List<Integer[]> batches, String text, String attachment, int jobId,
+                              BroadcastResult result) {
+    List<MessagesSendQuery> queries = new ArrayList<>(batches.size());
+    for (Integer[] batch : batches) {
+      queries.add(sendQuery(batch, text, attachment, jobId));
+    }
+    JsonElement response;
+    try {
+      response = limiter.execute(Lane.BULK, vk.execute().batch(actor, queries.toArray(new AbstractQueryBuilder<?, ?>[0])));
+    } catch (Exception e) {
+      e.printStackTrace();
+      for (int i = 0; i < batches.size(); i++) {
+        sendBatch(batches.get(i).length, queries.get(i), result);
+      }
+      return;
+    }
+    JsonArray calls = response != null && response.isJsonArray() ? response.getAsJsonArray() : new JsonArray();
+    for (int i = 0; i < batches.size(); i++) {
+      int size = batches.get(i).length;
+      JsonElement call = i < calls.size() ? calls.get(i) : null;
+      int delivered = call != null && call.isJsonArray() ? countDelivered(call.getAsJsonArray()) : 0;
+      result.add(delivered, size - delivered);
+    }
+  }
+
+  private int countDelivered(JsonArray perPeer) {
+    int delivered = 0;
+    for (JsonElement el : perPeer) {
+      if (!el.isJsonObject()) {
+        continue;
+      }
+      JsonObject obj = el.getAsJsonObject();
+      if (!obj.has("error") && obj.has("message_id")) {
+        delivered++;
+      }
+    }
+    return delivered;
+  }
+
+  private MessagesSendQuery sendQuery(Integer[] batch, String text, String attachment, int jobId) {
+    MessagesSendQuery query = vk.messages().send(actor)
+      .peerIds(batch)
+      .randomId(randomId(jobId, batch[0]))
+      .message(text);
+    if (attachment != null) {
+      query.attachment(attachment);
+    }
+    return query;
+  }
+
+  // VK drops a repeated random_id from the same sender, so a chunk re-sent after a restart is not delivered twice.
+  static int randomId(int jobId, int firstRecipient) {
+    return Long.hashCode(((long) jobId << 32) ^ (firstRecipient * 0x9E3779B97F4A7C15L));
+  }
+}
+
+class BroadcastResult {
+  int delivered;
+  int failed;
+
+  void add(int delivered, int failed) {
+    this.delivered += delivered;
+    this.failed += failed;
+  }
+}
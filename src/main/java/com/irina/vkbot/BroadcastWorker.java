@@ -0,0 +1,103 @@
+package com.irina.vkbot;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+public class BroadcastWorker implements Runnable {
+  static final String STATUS_QUEUED = "QUEUED";
+  static final String STATUS_RUNNING = "RUNNING";
+  static final String STATUS_DONE = "DONE";
+  static final String STATUS_CANCELLED = "CANCELLED";
+
+  private static final int CHUNK_SIZE = BroadcastEngine.PEERS_PER_SEND * BroadcastEngine.SENDS_PER_EXECUTE;
+
+  private final Db db;
+  private final BroadcastEngine engine;
+  private final BiConsumer<Integer, String> notifier;
+  private final long progressIntervalMs;
+  private final Semaphore wakeup = new Semaphore(0);
+
+  public BroadcastWorker(Db db, BroadcastEngine engine, BiConsumer<Integer, String> notifier, int progressIntervalSeconds) {
+    this.db = db;
+    this.engine = engine;
+    this.notifier = notifier;
+    this.progressIntervalMs = TimeUnit.SECONDS.toMillis(progressIntervalSeconds);
+  }
+
+  public void start() {
+    Thread t = new Thread(this, "broadcast");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  public void wake() {
+    wakeup.release();
+  }
+
+  @Override
+  public void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        BroadcastJob job = db.nextBroadcastJob();
+        if (job == null) {
+          wakeup.tryAcquire(30, TimeUnit.SECONDS);
+          wakeup.drainPermits();
+          continue;
+        }
+        runJob(job);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (Exception e) {
+        e.printStackTrace();
+        sleep(5000);
+      }
+    }
+  }
+
+  private void runJob(BroadcastJob job) {
+    if (STATUS_QUEUED.equals(job.status)) {
+      db.setBroadcastJobStatus(job.id, STATUS_RUNNING);
+      notifier.accept(job.adminPeerId, "Рассылка #" + job.id + " запущена. Получателей: " + job.total);
+    } else {
+      notifier.accept(job.adminPeerId, "Рассылка #" + job.id + " продолжена после перезапуска. " + progress(job));
+    }
+    long lastReport = System.currentTimeMillis();
+    while (true) {
+      if (STATUS_CANCELLED.equals(db.getBroadcastJobStatus(job.id))) {
+        notifier.accept(job.adminPeerId, "Рассылка #" + job.id + " остановлена. " + progress(job));
+        return;
+      }
+      int[] chunk = db.audienceChunk(job.cursorUserId, CHUNK_SIZE, job.onlySubscribed, job.minLastSeen);
+      if (chunk.length == 0) {
+        db.setBroadcastJobStatus(job.id, STATUS_DONE);
+        notifier.accept(job.adminPeerId, "Рассылка #" + job.id + " завершена. Отправлено: " + job.delivered +
+          ", не доставлено: " + job.failed);
+        return;
+      }
+      BroadcastResult result = engine.deliver(chunk, job.text, job.attachment, job.id);
+      job.delivered += result.delivered;
+      job.failed += result.failed;
+      job.cursorUserId = chunk[chunk.length - 1];
+      db.saveBroadcastProgress(job);
+
+      long now = System.currentTimeMillis();
+      if (progressIntervalMs > 0 && now - lastReport >= progressIntervalMs) {
+        lastReport = now;
+        notifier.accept(job.adminPeerId, "Рассылка #" + job.id + ": " + progress(job));
+      }
+    }
+  }
+
+  private String progress(BroadcastJob job) {
+    return "Отправлено: " + job.delivered + ", не доставлено: " + job.failed + " из " + job.total;
+  }
+
+  private void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package com.irina.vkbot;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class CallbackServer {
+  private final Config config;
+  private final UpdateQueue queue;
+  private final CursorTracker tracker;
+  private final LongPollDecoder decoder;
+  private HttpServer server;
+  private ExecutorService executor;
+
+  public CallbackServer(Config config, UpdateQueue queue, CursorTracker tracker, Set<String> acceptedTypes) {
+    this.config = config;
+    this.queue = queue;
+    this.tracker = tracker;
+    this.decoder = new LongPollDecoder(acceptedTypes);
+  }
+
+  public void start() {
+    try {
+      server = HttpServer.create(new InetSocketAddress(config.callbackPort), 0);
+    } catch (IOException e) {
+      throw new RuntimeException("Callback server start failed", e);
+    }
+    server.createContext(config.callbackPath, this::handle);
+    executor = Executors.newFixedThreadPool(config.callbackThreads);
+    server.setExecutor(executor);
+    server.start();
+    System.out.println("Callback API server listening on :" + config.callbackPort + config.callbackPath);
+  }
+
+  public void stop() {
+    if (server == null) {
+      return;
+    }
+    server.stop(1);
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+        respond(exchange, 405, "method not allowed");
+        return;
+      }
+      CallbackEvent event;
+      try (InputStreamReader in = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+        event = decoder.decodeCallback(in);
+      } catch (Exception e) {
+        respond(exchange, 400, "bad request");
+        return;
+      }
+      if (event.groupId != config.groupId) {
+        respond(exchange, 403, "forbidden");
+        return;
+      }
+      if ("confirmation".equals(event.type)) {
+        respond(exchange, 200, config.callbackConfirmation);
+        return;
+      }
+      if (!config.callbackSecret.isEmpty() && !config.callbackSecret.equals(event.secret)) {
+        respond(exchange, 403, "forbidden");
+        return;
+      }
+      if (event.update != null) {
+        event.update.checkpoint = tracker.begin(null, 1);
+        queue.put(event.update);
+      }
+      respond(exchange, 200, "ok");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      respond(exchange, 503, "unavailable");
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void respond(HttpExchange exchange, int code, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(code, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
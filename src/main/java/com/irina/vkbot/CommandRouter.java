@@ -0,0 +1,68 @@
+package com.irina.vkbot;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+public class CommandRouter<T> {
+  private final Map<String, Route<T>> routes = new HashMap<>();
+
+  public CommandRouter<T> on(String cmd, boolean adminOnly, Consumer<T> handler) {
+    routes.put(cmd, new Route<>(cmd, adminOnly, handler));
+    return this;
+  }
+
+  public boolean route(String cmd, boolean isAdmin, T ctx) {
+    Route<T> route = cmd != null ? routes.get(cmd) : null;
+    if (route == null || (route.adminOnly && !isAdmin)) {
+      return false;
+    }
+    long start = System.nanoTime();
+    try {
+      route.handler.accept(ctx);
+    } finally {
+      long elapsed = System.nanoTime() - start;
+      route.count.incrementAndGet();
+      route.totalNanos.addAndGet(elapsed);
+      route.maxNanos.accumulateAndGet(elapsed, Math::max);
+    }
+    return true;
+  }
+
+  public String metrics() {
+    StringBuilder sb = new StringBuilder();
+    for (Route<T> r : new TreeMap<>(routes).values()) {
+      long n = r.count.get();
+      if (n == 0) {
+        continue;
+      }
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      sb.append(r.cmd)
+        .append("[n=").append(n)
+        .append(" avg_ms=").append(TimeUnit.NANOSECONDS.toMillis(r.totalNanos.get() / n))
+        .append(" max_ms=").append(TimeUnit.NANOSECONDS.toMillis(r.maxNanos.getAndSet(0)))
+        .append(']');
+    }
+    return sb.toString();
+  }
+
+  private static class Route<T> {
+    final String cmd;
+    final boolean adminOnly;
+    final Consumer<T> handler;
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong totalNanos = new AtomicLong();
+    final AtomicLong maxNanos = new AtomicLong();
+
+    Route(String cmd, boolean adminOnly, Consumer<T> handler) {
+      this.cmd = cmd;
+      this.adminOnly = adminOnly;
+      this.handler = handler;
+    }
+  }
+}
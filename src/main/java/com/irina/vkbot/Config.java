@@ -10,23 +10,98 @@ public class Config {
   public final String apiVersion;
   public final Set<Integer> adminIds;
   public final String dbPath;
+  public final int dbReadPoolSize;
   public final int longPollWait;
   public final int pageSize;
+  public final int updateQueueCapacity;
+  public final int metricsInterval;
+  public final int dispatchThreads;
+  public final int dispatchShardCapacity;
+  public final boolean callbackMode;
+  public final int callbackPort;
+  public final String callbackPath;
+  public final String callbackConfirmation;
+  public final String callbackSecret;
+  public final int callbackThreads;
+  public final int dedupWindow;
+  public final int vkRequestsPerSecond;
+  public final boolean broadcastUseExecute;
+  public final int broadcastProgressInterval;
+  public final boolean broadcastOnlySubscribed;
+  public final int broadcastMaxInactiveDays;
+  public final int membershipCacheTtl;
+  public final int membershipCacheSize;
+  public final int reconcileIntervalHours;
+  public final int reconcilePauseMs;
+  public final int eventBatchSize;
+  public final int eventFlushMs;
+  public final int activityFlushInterval;
+  public final int adminSessionTtl;
 
   private Config(int groupId,
                  String token,
                  String apiVersion,
                  Set<Integer> adminIds,
                  String dbPath,
+                 int dbReadPoolSize,
                  int longPollWait,
-                 int pageSize) {
+                 int pageSize,
+                 int updateQueueCapacity,
+                 int metricsInterval,
+                 int dispatchThreads,
+                 int dispatchShardCapacity,
+                 boolean callbackMode,
+                 int callbackPort,
+                 String callbackPath,
+                 String callbackConfirmation,
+                 String callbackSecret,
+                 int callbackThreads,
+                 int dedupWindow,
+                 int vkRequestsPerSecond,
+                 boolean broadcastUseExecute,
+                 int broadcastProgressInterval,
+                 boolean broadcastOnlySubscribed,
+                 int broadcastMaxInactiveDays,
+                 int membershipCacheTtl,
+                 int membershipCacheSize,
+                 int reconcileIntervalHours,
+                 int reconcilePauseMs,
+                 int eventBatchSize,
+                 int eventFlushMs,
+                 int activityFlushInterval,
+                 int adminSessionTtl) {
     this.groupId = groupId;
     this.token = token;
     this.apiVersion = apiVersion;
     this.adminIds = adminIds;
     this.dbPath = dbPath;
+    this.dbReadPoolSize = dbReadPoolSize;
     this.longPollWait = longPollWait;
     this.pageSize = pageSize;
+    this.updateQueueCapacity = updateQueueCapacity;
+    this.metricsInterval = metricsInterval;
+    this.dispatchThreads = dispatchThreads;
+    this.dispatchShardCapacity = dispatchShardCapacity;
+    this.callbackMode = callbackMode;
+    this.callbackPort = callbackPort;
+    this.callbackPath = callbackPath;
+    this.callbackConfirmation = callbackConfirmation;
+    this.callbackSecret = callbackSecret;
+    this.callbackThreads = callbackThreads;
+    this.dedupWindow = dedupWindow;
+    this.vkRequestsPerSecond = vkRequestsPerSecond;
+    this.broadcastUseExecute = broadcastUseExecute;
+    this.broadcastProgressInterval = broadcastProgressInterval;
+    this.broadcastOnlySubscribed = broadcastOnlySubscribed;
+    this.broadcastMaxInactiveDays = broadcastMaxInactiveDays;
+    this.membershipCacheTtl = membershipCacheTtl;
+    this.membershipCacheSize = membershipCacheSize;
+    this.reconcileIntervalHours = reconcileIntervalHours;
+    this.reconcilePauseMs = reconcilePauseMs;
+    this.eventBatchSize = eventBatchSize;
+    this.eventFlushMs = eventFlushMs;
+    this.activityFlushInterval = activityFlushInterval;
+    this.adminSessionTtl = adminSessionTtl;
   }
 
   public static Config load() {
@@ -34,8 +109,33 @@ public class Config {
     String token = env("VK_TOKEN", "");
     String apiVersion = env("VK_API_VERSION", "5.199");
     String dbPath = env("DB_PATH", "./bot.db");
+    int dbReadPoolSize = Integer.parseInt(env("DB_READ_POOL", "4"));
     int longPollWait = Integer.parseInt(env("LONGPOLL_WAIT", "25"));
-    int pageSize = Integer.parseInt(env("PAGE_SIZE", "8"));
+    int pageSize = Math.min(Integer.parseInt(env("PAGE_SIZE", "8")), KeyboardBuilder.MAX_ROWS - 2);
+    int updateQueueCapacity = Integer.parseInt(env("UPDATE_QUEUE_CAPACITY", "1000"));
+    int metricsInterval = Integer.parseInt(env("METRICS_INTERVAL", "60"));
+    int dispatchThreads = Integer.parseInt(env("DISPATCH_THREADS", "16"));
+    int dispatchShardCapacity = Integer.parseInt(env("DISPATCH_SHARD_CAPACITY", "64"));
+    boolean callbackMode = "callback".equalsIgnoreCase(env("BOT_MODE", "longpoll"));
+    int callbackPort = Integer.parseInt(env("CALLBACK_PORT", "8080"));
+    String callbackPath = env("CALLBACK_PATH", "/callback");
+    String callbackConfirmation = env("CALLBACK_CONFIRMATION", "");
+    String callbackSecret = env("CALLBACK_SECRET", "");
+    int callbackThreads = Integer.parseInt(env("CALLBACK_THREADS", "4"));
+    int dedupWindow = Integer.parseInt(env("DEDUP_WINDOW", "10000"));
+    int vkRequestsPerSecond = Integer.parseInt(env("VK_RPS", "20"));
+    boolean broadcastUseExecute = Boolean.parseBoolean(env("BROADCAST_USE_EXECUTE", "true"));
+    int broadcastProgressInterval = Integer.parseInt(env("BROADCAST_PROGRESS_INTERVAL", "60"));
+    boolean broadcastOnlySubscribed = Boolean.parseBoolean(env("BROADCAST_ONLY_SUBSCRIBED", "true"));
+    int broadcastMaxInactiveDays = Integer.parseInt(env("BROADCAST_MAX_INACTIVE_DAYS", "0"));
+    int membershipCacheTtl = Integer.parseInt(env("MEMBERSHIP_CACHE_TTL", "600"));
+    int membershipCacheSize = Integer.parseInt(env("MEMBERSHIP_CACHE_SIZE", "100000"));
+    int reconcileIntervalHours = Integer.parseInt(env("RECONCILE_INTERVAL_HOURS", "24"));
+    int reconcilePauseMs = Integer.parseInt(env("RECONCILE_PAUSE_MS", "200"));
+    int eventBatchSize = Integer.parseInt(env("EVENT_BATCH_SIZE", "500"));
+    int eventFlushMs = Integer.parseInt(env("EVENT_FLUSH_MS", "1000"));
+    int activityFlushInterval = Integer.parseInt(env("ACTIVITY_FLUSH_INTERVAL", "30"));
+    int adminSessionTtl = Integer.parseInt(env("ADMIN_SESSION_TTL", "86400"));
 
     Set<Integer> adminIds = new HashSet<>();
     String adminRaw = env("ADMIN_IDS", "").trim();
@@ -49,8 +149,17 @@ public class Config {
     if (groupId == 0 || token.isEmpty()) {
       throw new IllegalStateException("VK_GROUP_ID and VK_TOKEN are required");
     }
+    if (callbackMode && callbackConfirmation.isEmpty()) {
+      throw new IllegalStateException("CALLBACK_CONFIRMATION is required when BOT_MODE=callback");
+    }
 
-    return new Config(groupId, token, apiVersion, adminIds, dbPath, longPollWait, pageSize);
+    return new Config(groupId, token, apiVersion, adminIds, dbPath, dbReadPoolSize, longPollWait, pageSize,
+      updateQueueCapacity, metricsInterval, dispatchThreads, dispatchShardCapacity,
+      callbackMode, callbackPort, callbackPath, callbackConfirmation, callbackSecret, callbackThreads,
+      dedupWindow, vkRequestsPerSecond, broadcastUseExecute,
+      broadcastProgressInterval, broadcastOnlySubscribed, broadcastMaxInactiveDays,
+      membershipCacheTtl, membershipCacheSize, reconcileIntervalHours, reconcilePauseMs,
+      eventBatchSize, eventFlushMs, activityFlushInterval, adminSessionTtl);
   }
 
   private static String env(String key, String def) {
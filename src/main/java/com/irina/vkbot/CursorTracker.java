@@ -0,0 +1,68 @@
+package com.irina.vkbot;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CursorTracker {
+  private final Db db;
+  private final Deque<Checkpoint> pending = new ArrayDeque<>();
+  private String server;
+  private String key;
+
+  public CursorTracker(Db db) {
+    this.db = db;
+  }
+
+  public synchronized void setServer(String server, String key) {
+    this.server = server;
+    this.key = key;
+  }
+
+  public Checkpoint begin(String ts, int size) {
+    Checkpoint cp = new Checkpoint(ts, size);
+    synchronized (this) {
+      pending.addLast(cp);
+    }
+    if (size == 0) {
+      complete(cp);
+    }
+    return cp;
+  }
+
+  private synchronized void complete(Checkpoint cp) {
+    cp.done = true;
+    String committedTs = null;
+    while (!pending.isEmpty() && pending.peekFirst().done) {
+      Checkpoint head = pending.pollFirst();
+      if (head.ts != null) {
+        committedTs = head.ts;
+      }
+    }
+    if (committedTs == null) {
+      return;
+    }
+    try {
+      db.saveCheckpoint(server, key, committedTs);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  public class Checkpoint {
+    final String ts;
+    final AtomicInteger remaining;
+    boolean done;
+
+    Checkpoint(String ts, int size) {
+      this.ts = ts;
+      this.remaining = new AtomicInteger(size);
+    }
+
+    public void ack() {
+      if (remaining.decrementAndGet() == 0) {
+        complete(this);
+      }
+    }
+  }
+}
@@ -3,149 +3,562 @@ package com.irina.vkbot;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 
+import org.sqlite.SQLiteConfig;
+
 import java.sql.*;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Db {
   private final String dbPath;
-  private Connection conn;
+  private final int readPoolSize;
+  private Connection writer;
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private BlockingQueue<Connection> readers;
+  private final Map<Connection, Map<String, PreparedStatement>> statements = new IdentityHashMap<>();
   private final Gson gson = new Gson();
 
-  public Db(String dbPath) {
+  private final AtomicLong writeAcquires = new AtomicLong();
+  private final AtomicLong writeWaitNanos = new AtomicLong();
+  private final AtomicLong writeContended = new AtomicLong();
+  private final AtomicLong readAcquires = new AtomicLong();
+  private final AtomicLong readWaitNanos = new AtomicLong();
+  private final AtomicLong readContended = new AtomicLong();
+  private final AtomicLong statementsPrepared = new AtomicLong();
+  private final AtomicLong statementsReused = new AtomicLong();
+
+  private static final long HANDLED_RETENTION_SECONDS = 86400;
+  private static final int BUSY_TIMEOUT_MS = 5000;
+
+  private interface Migration {
+    void apply(Statement st) throws SQLException;
+  }
+
+  private static final List<Migration> MIGRATIONS = List.of(
+    Db::createBaseSchema,
+    Db::addAnalyticsIndexes,
+    Db::createStatsRollups
+  );
+
+  private interface RowMapper<T> {
+    T map(ResultSet rs) throws SQLException;
+  }
+
+  private static final String USER_COLUMNS = "user_id, first_seen, last_seen, is_subscribed, is_admin, pending_ref";
+  private static final RowMapper<User> USER = rs -> {
+    User u = new User();
+    u.userId = rs.getInt(1);
+    u.firstSeen = rs.getLong(2);
+    u.lastSeen = rs.getLong(3);
+    u.isSubscribed = rs.getInt(4) == 1;
+    u.isAdmin = rs.getInt(5) == 1;
+    u.pendingRef = rs.getString(6);
+    return u;
+  };
+
+  private static final String MAGNET_COLUMNS = "id, title, description, type, attachment, url, ref_code, is_active";
+  private static final RowMapper<Magnet> MAGNET = rs -> {
+    Magnet m = new Magnet();
+    m.id = rs.getInt(1);
+    m.title = rs.getString(2);
+    m.description = rs.getString(3);
+    m.type = rs.getString(4);
+    m.attachment = rs.getString(5);
+    m.url = rs.getString(6);
+    m.refCode = rs.getString(7);
+    m.isActive = rs.getInt(8) == 1;
+    return m;
+  };
+
+  private static final String BROADCAST_JOB_COLUMNS = "id, admin_peer_id, text, attachment, status, cursor_user_id, " +
+    "total, delivered, failed, only_subscribed, min_last_seen";
+  private static final RowMapper<BroadcastJob> BROADCAST_JOB = rs -> {
+    BroadcastJob job = new BroadcastJob();
+    job.id = rs.getInt(1);
+    job.adminPeerId = rs.getInt(2);
+    job.text = rs.getString(3);
+    job.attachment = rs.getString(4);
+    job.status = rs.getString(5);
+    job.cursorUserId = rs.getInt(6);
+    job.total = rs.getInt(7);
+    job.delivered = rs.getInt(8);
+    job.failed = rs.getInt(9);
+    job.onlySubscribed = rs.getInt(10) == 1;
+    job.minLastSeen = rs.getLong(11);
+    return job;
+  };
+
+  private static final RowMapper<LongPollCursor> LONG_POLL_CURSOR = rs -> {
+    LongPollCursor cursor = new LongPollCursor();
+    cursor.server = rs.getString(1);
+    cursor.key = rs.getString(2);
+    cursor.ts = rs.getString(3);
+    return cursor;
+  };
+
+  private static final RowMapper<MagnetStat> MAGNET_STAT = rs -> {
+    MagnetStat ms = new MagnetStat();
+    ms.id = rs.getInt(1);
+    ms.title = rs.getString(2);
+    ms.downloads = rs.getInt(3);
+    return ms;
+  };
+
+  public Db(String dbPath, int readPoolSize) {
     this.dbPath = dbPath;
+    this.readPoolSize = Math.max(1, readPoolSize);
   }
 
   public synchronized void init() {
     try {
-      conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
-      conn.setAutoCommit(true);
-      try (Statement st = conn.createStatement()) {
+      writer = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+      writer.setAutoCommit(true);
+      statements.put(writer, new HashMap<>());
+      try (Statement st = writer.createStatement()) {
         st.execute("PRAGMA journal_mode=WAL");
         st.execute("PRAGMA synchronous=NORMAL");
-        st.execute("CREATE TABLE IF NOT EXISTS users (" +
-          "user_id INTEGER PRIMARY KEY," +
-          "first_seen INTEGER," +
-          "last_seen INTEGER," +
-          "is_subscribed INTEGER DEFAULT 0," +
-          "is_admin INTEGER DEFAULT 0," +
-          "pending_ref TEXT" +
-          ")");
-
-        st.execute("CREATE TABLE IF NOT EXISTS magnets (" +
-          "id INTEGER PRIMARY KEY AUTOINCREMENT," +
-          "title TEXT NOT NULL," +
-          "description TEXT," +
-          "type TEXT NOT NULL," +
-          "attachment TEXT," +
-          "url TEXT," +
-          "ref_code TEXT UNIQUE," +
-          "is_active INTEGER DEFAULT 1," +
-          "created_at INTEGER," +
-          "updated_at INTEGER" +
-          ")");
-
-        st.execute("CREATE TABLE IF NOT EXISTS events (" +
-          "id INTEGER PRIMARY KEY AUTOINCREMENT," +
-          "user_id INTEGER NOT NULL," +
-          "event_type TEXT NOT NULL," +
-          "magnet_id INTEGER," +
-          "ts INTEGER" +
-          ")");
-
-        st.execute("CREATE TABLE IF NOT EXISTS admin_states (" +
-          "user_id INTEGER PRIMARY KEY," +
-          "state TEXT," +
-          "data TEXT," +
-          "updated_at INTEGER" +
-          ")");
+        st.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MS);
+      }
+      migrate();
+
+      readers = new ArrayBlockingQueue<>(readPoolSize);
+      for (int i = 0; i < readPoolSize; i++) {
+        SQLiteConfig cfg = new SQLiteConfig();
+        cfg.setReadOnly(true);
+        cfg.setBusyTimeout(BUSY_TIMEOUT_MS);
+        Connection reader = DriverManager.getConnection("jdbc:sqlite:" + dbPath, cfg.toProperties());
+        statements.put(reader, new HashMap<>());
+        readers.add(reader);
       }
     } catch (SQLException e) {
       throw new RuntimeException("DB init failed", e);
     }
   }
 
-  public synchronized void upsertUser(int userId, boolean isAdmin) {
-    long now = Instant.now().getEpochSecond();
-    try (PreparedStatement ps = conn.prepareStatement(
-      "INSERT INTO users(user_id, first_seen, last_seen, is_admin) VALUES(?,?,?,?) " +
-        "ON CONFLICT(user_id) DO UPDATE SET last_seen=excluded.last_seen, is_admin=excluded.is_admin")) {
-      ps.setInt(1, userId);
-      ps.setLong(2, now);
-      ps.setLong(3, now);
-      ps.setInt(4, isAdmin ? 1 : 0);
-      ps.executeUpdate();
+  private Connection acquireWriter() {
+    long start = System.nanoTime();
+    if (!writeLock.tryLock()) {
+      writeContended.incrementAndGet();
+      writeLock.lock();
+    }
+    writeAcquires.incrementAndGet();
+    writeWaitNanos.addAndGet(System.nanoTime() - start);
+    return writer;
+  }
+
+  private void releaseWriter() {
+    writeLock.unlock();
+  }
+
+  private Connection acquireReader() {
+    long start = System.nanoTime();
+    Connection c = readers.poll();
+    if (c == null) {
+      readContended.incrementAndGet();
+      try {
+        c = readers.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for a DB connection", e);
+      }
+    }
+    readAcquires.incrementAndGet();
+    readWaitNanos.addAndGet(System.nanoTime() - start);
+    return c;
+  }
+
+  private void releaseReader(Connection c) {
+    readers.offer(c);
+  }
+
+  private PreparedStatement prepare(Connection c, String sql) throws SQLException {
+    Map<String, PreparedStatement> cache = statements.get(c);
+    PreparedStatement ps = cache.get(sql);
+    if (ps == null) {
+      ps = c.prepareStatement(sql);
+      cache.put(sql, ps);
+      statementsPrepared.incrementAndGet();
+    } else {
+      ps.clearParameters();
+      ps.clearBatch();
+      statementsReused.incrementAndGet();
+    }
+    return ps;
+  }
+
+  private static <T> T queryOne(PreparedStatement ps, RowMapper<T> mapper) throws SQLException {
+    try (ResultSet rs = ps.executeQuery()) {
+      return rs.next() ? mapper.map(rs) : null;
+    }
+  }
+
+  private static <T> List<T> queryList(PreparedStatement ps, RowMapper<T> mapper) throws SQLException {
+    try (ResultSet rs = ps.executeQuery()) {
+      List<T> list = new ArrayList<>();
+      while (rs.next()) {
+        list.add(mapper.map(rs));
+      }
+      return list;
+    }
+  }
+
+  private static int queryInt(PreparedStatement ps) throws SQLException {
+    try (ResultSet rs = ps.executeQuery()) {
+      return rs.next() ? rs.getInt(1) : 0;
+    }
+  }
+
+  public String metrics() {
+    return "write[acquires=" + writeAcquires.get() +
+      " contended=" + writeContended.get() +
+      " wait_ms=" + TimeUnit.NANOSECONDS.toMillis(writeWaitNanos.get()) +
+      "] read[pool=" + readPoolSize +
+      " idle=" + readers.size() +
+      " acquires=" + readAcquires.get() +
+      " contended=" + readContended.get() +
+      " wait_ms=" + TimeUnit.NANOSECONDS.toMillis(readWaitNanos.get()) +
+      "] stmt[prepared=" + statementsPrepared.get() +
+      " reused=" + statementsReused.get() + "]";
+  }
+
+  private void migrate() throws SQLException {
+    try (Statement st = writer.createStatement()) {
+      int version;
+      try (ResultSet rs = st.executeQuery("PRAGMA user_version")) {
+        version = rs.next() ? rs.getInt(1) : 0;
+      }
+      if (version > MIGRATIONS.size()) {
+        System.out.println("Schema version " + version + " is newer than this build knows (" + MIGRATIONS.size() + ")");
+        return;
+      }
+      for (int v = version; v < MIGRATIONS.size(); v++) {
+        writer.setAutoCommit(false);
+        try {
+          MIGRATIONS.get(v).apply(st);
+          st.execute("PRAGMA user_version=" + (v + 1));
+          writer.commit();
+        } catch (SQLException e) {
+          rollbackQuietly(writer);
+          throw e;
+        } finally {
+          restoreAutoCommit(writer);
+        }
+        System.out.println("Schema migrated to version " + (v + 1));
+      }
+    }
+  }
+
+  private static void createBaseSchema(Statement st) throws SQLException {
+    st.execute("CREATE TABLE IF NOT EXISTS users (" +
+      "user_id INTEGER PRIMARY KEY," +
+      "first_seen INTEGER," +
+      "last_seen INTEGER," +
+      "is_subscribed INTEGER DEFAULT 0," +
+      "is_admin INTEGER DEFAULT 0," +
+      "pending_ref TEXT" +
+      ")");
+
+    st.execute("CREATE TABLE IF NOT EXISTS magnets (" +
+      "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+      "title TEXT NOT NULL," +
+      "description TEXT," +
+      "type TEXT NOT NULL," +
+      "attachment TEXT," +
+      "url TEXT," +
+      "ref_code TEXT UNIQUE," +
+      "is_active INTEGER DEFAULT 1," +
+      "created_at INTEGER," +
+      "updated_at INTEGER" +
+      ")");
+
+    st.execute("CREATE TABLE IF NOT EXISTS events (" +
+      "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+      "user_id INTEGER NOT NULL," +
+      "event_type TEXT NOT NULL," +
+      "magnet_id INTEGER," +
+      "ts INTEGER" +
+      ")");
+
+    st.execute("CREATE TABLE IF NOT EXISTS admin_states (" +
+      "user_id INTEGER PRIMARY KEY," +
+      "state TEXT," +
+      "data TEXT," +
+      "updated_at INTEGER" +
+      ")");
+
+    st.execute("CREATE TABLE IF NOT EXISTS longpoll_state (" +
+      "id INTEGER PRIMARY KEY CHECK (id = 1)," +
+      "server TEXT," +
+      "lp_key TEXT," +
+      "ts TEXT," +
+      "updated_at INTEGER" +
+      ")");
+
+    st.execute("CREATE TABLE IF NOT EXISTS broadcast_jobs (" +
+      "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+      "admin_peer_id INTEGER NOT NULL," +
+      "text TEXT," +
+      "attachment TEXT," +
+      "status TEXT NOT NULL," +
+      "cursor_user_id INTEGER DEFAULT 0," +
+      "total INTEGER DEFAULT 0," +
+      "delivered INTEGER DEFAULT 0," +
+      "failed INTEGER DEFAULT 0," +
+      "only_subscribed INTEGER DEFAULT 0," +
+      "min_last_seen INTEGER DEFAULT 0," +
+      "created_at INTEGER," +
+      "updated_at INTEGER" +
+      ")");
+
+    st.execute("CREATE INDEX IF NOT EXISTS idx_users_audience ON users(is_subscribed, user_id, last_seen)");
+
+    st.execute("CREATE TABLE IF NOT EXISTS handled_messages (" +
+      "msg_key INTEGER PRIMARY KEY," +
+      "handled_at INTEGER" +
+      ")");
+  }
+
+  private static void addAnalyticsIndexes(Statement st) throws SQLException {
+    st.execute("CREATE INDEX IF NOT EXISTS idx_events_type_user ON events(event_type, user_id)");
+    st.execute("CREATE INDEX IF NOT EXISTS idx_events_magnet_type ON events(magnet_id, event_type)");
+    st.execute("CREATE INDEX IF NOT EXISTS idx_users_subscribed_seen ON users(is_subscribed, last_seen)");
+  }
+
+  private static void createStatsRollups(Statement st) throws SQLException {
+    st.execute("CREATE TABLE IF NOT EXISTS event_totals (" +
+      "event_type TEXT PRIMARY KEY," +
+      "total INTEGER NOT NULL DEFAULT 0," +
+      "unique_users INTEGER NOT NULL DEFAULT 0" +
+      ")");
+    st.execute("CREATE TABLE IF NOT EXISTS event_users (" +
+      "event_type TEXT NOT NULL," +
+      "user_id INTEGER NOT NULL," +
+      "PRIMARY KEY(event_type, user_id)" +
+      ") WITHOUT ROWID");
+    st.execute("CREATE TABLE IF NOT EXISTS magnet_totals (" +
+      "magnet_id INTEGER PRIMARY KEY," +
+      "downloads INTEGER NOT NULL DEFAULT 0" +
+      ")");
+
+    st.execute("DELETE FROM event_totals");
+    st.execute("DELETE FROM event_users");
+    st.execute("DELETE FROM magnet_totals");
+    st.execute("INSERT INTO event_users(event_type, user_id) SELECT DISTINCT event_type, user_id FROM events");
+    st.execute("INSERT INTO event_totals(event_type, total, unique_users) " +
+      "SELECT event_type, COUNT(*), COUNT(DISTINCT user_id) FROM events GROUP BY event_type");
+    st.execute("INSERT INTO magnet_totals(magnet_id, downloads) " +
+      "SELECT magnet_id, COUNT(*) FROM events WHERE event_type='magnet_sent' AND magnet_id IS NOT NULL GROUP BY magnet_id");
+  }
+
+  public void saveLastSeenBatch(int[] userIds, long[] lastSeen, int count) {
+    if (count == 0) {
+      return;
+    }
+    Connection c = acquireWriter();
+    try {
+      c.setAutoCommit(false);
+      PreparedStatement ps = prepare(c, "UPDATE users SET last_seen=? WHERE user_id=? AND last_seen<?");
+      for (int i = 0; i < count; i++) {
+        ps.setLong(1, lastSeen[i]);
+        ps.setInt(2, userIds[i]);
+        ps.setLong(3, lastSeen[i]);
+        ps.addBatch();
+      }
+      ps.executeBatch();
+      c.commit();
     } catch (SQLException e) {
+      rollbackQuietly(c);
       throw new RuntimeException(e);
+    } finally {
+      restoreAutoCommit(c);
+      releaseWriter();
     }
   }
 
-  public synchronized User getUser(int userId) {
-    try (PreparedStatement ps = conn.prepareStatement(
-      "SELECT user_id, first_seen, last_seen, is_subscribed, is_admin, pending_ref FROM users WHERE user_id=?")) {
-      ps.setInt(1, userId);
-      try (ResultSet rs = ps.executeQuery()) {
-        if (!rs.next()) {
-          return null;
-        }
-        User u = new User();
-        u.userId = rs.getInt("user_id");
-        u.firstSeen = rs.getLong("first_seen");
-        u.lastSeen = rs.getLong("last_seen");
-        u.isSubscribed = rs.getInt("is_subscribed") == 1;
-        u.isAdmin = rs.getInt("is_admin") == 1;
-        u.pendingRef = rs.getString("pending_ref");
-        return u;
+  public void commitUnitOfWork(UnitOfWork uow) {
+    Connection c = acquireWriter();
+    try {
+      c.setAutoCommit(false);
+      if (uow.touched) {
+        PreparedStatement ps = prepare(c, "INSERT INTO users(user_id, first_seen, last_seen, is_admin) VALUES(?,?,?,?) " +
+          "ON CONFLICT(user_id) DO UPDATE SET last_seen=excluded.last_seen, is_admin=excluded.is_admin");
+        ps.setInt(1, uow.userId);
+        ps.setLong(2, uow.seenAt);
+        ps.setLong(3, uow.seenAt);
+        ps.setInt(4, uow.isAdmin ? 1 : 0);
+        ps.executeUpdate();
       }
+      if (uow.pendingRefDirty) {
+        PreparedStatement ps = prepare(c, "UPDATE users SET pending_ref=? WHERE user_id=?");
+        ps.setString(1, uow.pendingRef);
+        ps.setInt(2, uow.userId);
+        ps.executeUpdate();
+      }
+      if (uow.subscribedDirty) {
+        PreparedStatement ps = prepare(c, "UPDATE users SET is_subscribed=? WHERE user_id=?");
+        ps.setInt(1, uow.subscribed ? 1 : 0);
+        ps.setInt(2, uow.userId);
+        ps.executeUpdate();
+      }
+      if (uow.handledKey != 0) {
+        PreparedStatement ps = prepare(c, "INSERT OR IGNORE INTO handled_messages(msg_key, handled_at) VALUES(?,?)");
+        ps.setLong(1, uow.handledKey);
+        ps.setLong(2, Instant.now().getEpochSecond());
+        ps.executeUpdate();
+      }
+      c.commit();
     } catch (SQLException e) {
+      rollbackQuietly(c);
       throw new RuntimeException(e);
+    } finally {
+      restoreAutoCommit(c);
+      releaseWriter();
     }
   }
 
-  public synchronized void setSubscribed(int userId, boolean subscribed) {
-    try (PreparedStatement ps = conn.prepareStatement(
-      "UPDATE users SET is_subscribed=? WHERE user_id=?")) {
+  public User getUser(int userId) {
+    Connection c = acquireReader();
+    try {
+      PreparedStatement ps = prepare(c, "SELECT " + USER_COLUMNS + " FROM users WHERE user_id=?");
+      ps.setInt(1, userId);
+      return queryOne(ps, USER);
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    } finally {
+      releaseReader(c);
+    }
+  }
+
+  public boolean setSubscribed(int userId, boolean subscribed) {
+    Connection c = acquireWriter();
+    try {
+      PreparedStatement ps = prepare(c, "UPDATE users SET is_subscribed=? WHERE user_id=?");
       ps.setInt(1, subscribed ? 1 : 0);
       ps.setInt(2, userId);
-      ps.executeUpdate();
+      return ps.executeUpdate() > 0;
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      releaseWriter();
     }
   }
 
-  public synchronized void setPendingRef(int userId, String ref) {
-    try (PreparedStatement ps = conn.prepareStatement(
-      "UPDATE users SET pending_ref=? WHERE user_id=?")) {
-      ps.setString(1, ref);
-      ps.setInt(2, userId);
-      ps.executeUpdate();
+  public void setSubscribedBatch(int[] userIds, boolean[] subscribed, int count) {
+    if (count == 0) {
+      return;
+    }
+    Connection c = acquireWriter();
+    try {
+      c.setAutoCommit(false);
+      PreparedStatement ps = prepare(c, "UPDATE users SET is_subscribed=? WHERE user_id=? AND is_subscribed<>?");
+      for (int i = 0; i < count; i++) {
+        int flag = subscribed[i] ? 1 : 0;
+        ps.setInt(1, flag);
+        ps.setInt(2, userIds[i]);
+        ps.setInt(3, flag);
+        ps.addBatch();
+      }
+      ps.executeBatch();
+      c.commit();
     } catch (SQLException e) {
+      rollbackQuietly(c);
       throw new RuntimeException(e);
+    } finally {
+      restoreAutoCommit(c);
+      releaseWriter();
     }
   }
 
-  public synchronized void logEvent(int userId, String type, Integer magnetId) {
-    long now = Instant.now().getEpochSecond();
-    try (PreparedStatement ps = conn.prepareStatement(
-      "INSERT INTO events(user_id, event_type, magnet_id, ts) VALUES(?,?,?,?)")) {
-      ps.setInt(1, userId);
-      ps.setString(2, type);
-      if (magnetId == null) {
-        ps.setNull(3, Types.INTEGER);
-      } else {
-        ps.setInt(3, magnetId);
+  private void updateRollups(Connection c, List<EventSink.Event> events) throws SQLException {
+    PreparedStatement seen = prepare(c, "INSERT OR IGNORE INTO event_users(event_type, user_id) VALUES(?,?)");
+    for (EventSink.Event e : events) {
+      seen.setString(1, e.type);
+      seen.setInt(2, e.userId);
+      seen.addBatch();
+    }
+    int[] added = seen.executeBatch();
+
+    Map<String, long[]> totals = new HashMap<>();
+    Map<Integer, long[]> downloads = new HashMap<>();
+    for (int i = 0; i < events.size(); i++) {
+      EventSink.Event e = events.get(i);
+      long[] t = totals.computeIfAbsent(e.type, k -> new long[2]);
+      t[0]++;
+      if (added[i] > 0) {
+        t[1]++;
       }
-      ps.setLong(4, now);
-      ps.executeUpdate();
+      if ("magnet_sent".equals(e.type) && e.magnetId != null) {
+        downloads.computeIfAbsent(e.magnetId, k -> new long[1])[0]++;
+      }
+    }
+
+    PreparedStatement ps = prepare(c, "INSERT INTO event_totals(event_type, total, unique_users) VALUES(?,?,?) " +
+      "ON CONFLICT(event_type) DO UPDATE SET total=total+excluded.total, unique_users=unique_users+excluded.unique_users");
+    for (Map.Entry<String, long[]> t : totals.entrySet()) {
+      ps.setString(1, t.getKey());
+      ps.setLong(2, t.getValue()[0]);
+      ps.setLong(3, t.getValue()[1]);
+      ps.addBatch();
+    }
+    ps.executeBatch();
+
+    if (!downloads.isEmpty()) {
+      PreparedStatement dl = prepare(c, "INSERT INTO magnet_totals(magnet_id, downloads) VALUES(?,?) " +
+        "ON CONFLICT(magnet_id) DO UPDATE SET downloads=downloads+excluded.downloads");
+      for (Map.Entry<Integer, long[]> d : downloads.entrySet()) {
+        dl.setInt(1, d.getKey());
+        dl.setLong(2, d.getValue()[0]);
+        dl.addBatch();
+      }
+      dl.executeBatch();
+    }
+  }
+
+  public void insertEvents(List<EventSink.Event> events) {
+    if (events.isEmpty()) {
+      return;
+    }
+    Connection c = acquireWriter();
+    try {
+      c.setAutoCommit(false);
+      PreparedStatement ps = prepare(c, "INSERT INTO events(user_id, event_type, magnet_id, ts) VALUES(?,?,?,?)");
+      for (EventSink.Event e : events) {
+        ps.setInt(1, e.userId);
+        ps.setString(2, e.type);
+        if (e.magnetId == null) {
+          ps.setNull(3, Types.INTEGER);
+        } else {
+          ps.setInt(3, e.magnetId);
+        }
+        ps.setLong(4, e.ts);
+        ps.addBatch();
+      }
+      ps.executeBatch();
+      updateRollups(c, events);
+      c.commit();
     } catch (SQLException e) {
+      rollbackQuietly(c);
       throw new RuntimeException(e);
+    } finally {
+      restoreAutoCommit(c);
+      releaseWriter();
     }
   }
 
-  public synchronized int createMagnet(Magnet m) {
+  public int createMagnet(Magnet m) {
     long now = Instant.now().getEpochSecond();
-    try (PreparedStatement ps = conn.prepareStatement(
+    Connection c = acquireWriter();
+    try (PreparedStatement ps = c.prepareStatement(
       "INSERT INTO magnets(title, description, type, attachment, url, ref_code, is_active, created_at, updated_at) " +
         "VALUES(?,?,?,?,?,?,?,?,?)", Statement.RETURN_GENERATED_KEYS)) {
       ps.setString(1, m.title);
@@ -166,13 +579,16 @@ public class Db {
       throw new RuntimeException("Failed to get magnet id");
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      releaseWriter();
     }
   }
 
-  public synchronized void updateMagnet(Magnet m) {
+  public void updateMagnet(Magnet m) {
     long now = Instant.now().getEpochSecond();
-    try (PreparedStatement ps = conn.prepareStatement(
-      "UPDATE magnets SET title=?, description=?, type=?, attachment=?, url=?, ref_code=?, is_active=?, updated_at=? WHERE id=?")) {
+    Connection c = acquireWriter();
+    try {
+      PreparedStatement ps = prepare(c, "UPDATE magnets SET title=?, description=?, type=?, attachment=?, url=?, ref_code=?, is_active=?, updated_at=? WHERE id=?");
       ps.setString(1, m.title);
       ps.setString(2, m.description);
       ps.setString(3, m.type);
@@ -185,206 +601,348 @@ public class Db {
       ps.executeUpdate();
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      releaseWriter();
     }
   }
 
-  public synchronized void deleteMagnet(int id) {
-    try (PreparedStatement ps = conn.prepareStatement("DELETE FROM magnets WHERE id=?")) {
+  public void deleteMagnet(int id) {
+    Connection c = acquireWriter();
+    try {
+      PreparedStatement ps = prepare(c, "DELETE FROM magnets WHERE id=?");
       ps.setInt(1, id);
       ps.executeUpdate();
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      releaseWriter();
     }
   }
 
-  public synchronized Magnet getMagnetById(int id) {
-    try (PreparedStatement ps = conn.prepareStatement(
-      "SELECT id, title, description, type, attachment, url, ref_code, is_active FROM magnets WHERE id=?")) {
-      ps.setInt(1, id);
-      try (ResultSet rs = ps.executeQuery()) {
-        if (!rs.next()) {
-          return null;
-        }
-        return readMagnet(rs);
-      }
+  public List<Magnet> loadMagnets() {
+    Connection c = acquireReader();
+    try {
+      PreparedStatement ps = prepare(c, "SELECT " + MAGNET_COLUMNS + " FROM magnets ORDER BY id DESC");
+      return queryList(ps, MAGNET);
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      releaseReader(c);
     }
   }
 
-  public synchronized Magnet getMagnetByRef(String ref) {
-    try (PreparedStatement ps = conn.prepareStatement(
-      "SELECT id, title, description, type, attachment, url, ref_code, is_active FROM magnets WHERE ref_code=?")) {
-      ps.setString(1, ref);
-      try (ResultSet rs = ps.executeQuery()) {
-        if (!rs.next()) {
-          return null;
-        }
-        return readMagnet(rs);
-      }
+  public List<AdminState> loadAdminStates() {
+    Connection c = acquireReader();
+    try {
+      PreparedStatement ps = prepare(c, "SELECT user_id, state, data, updated_at FROM admin_states");
+      return queryList(ps, rs -> {
+        AdminState st = new AdminState();
+        st.userId = rs.getInt(1);
+        st.state = rs.getString(2);
+        st.data = rs.getString(3);
+        st.updatedAt = rs.getLong(4);
+        return st;
+      });
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      releaseReader(c);
     }
   }
 
-  public synchronized List<Magnet> listMagnets(boolean onlyActive, int offset, int limit) {
-    String sql = "SELECT id, title, description, type, attachment, url, ref_code, is_active FROM magnets" +
-      (onlyActive ? " WHERE is_active=1" : "") + " ORDER BY id DESC LIMIT ? OFFSET ?";
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
-      ps.setInt(1, limit);
-      ps.setInt(2, offset);
-      try (ResultSet rs = ps.executeQuery()) {
-        List<Magnet> list = new ArrayList<>();
-        while (rs.next()) {
-          list.add(readMagnet(rs));
-        }
-        return list;
-      }
+  public void setAdminState(int userId, String state, JsonObject data) {
+    long now = Instant.now().getEpochSecond();
+    String json = data == null ? null : gson.toJson(data);
+    Connection c = acquireWriter();
+    try {
+      PreparedStatement ps = prepare(c, "INSERT INTO admin_states(user_id, state, data, updated_at) VALUES(?,?,?,?) " +
+        "ON CONFLICT(user_id) DO UPDATE SET state=excluded.state, data=excluded.data, updated_at=excluded.updated_at");
+      ps.setInt(1, userId);
+      ps.setString(2, state);
+      ps.setString(3, json);
+      ps.setLong(4, now);
+      ps.executeUpdate();
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      releaseWriter();
     }
   }
 
-  public synchronized int countMagnets(boolean onlyActive) {
-    String sql = "SELECT COUNT(*) FROM magnets" + (onlyActive ? " WHERE is_active=1" : "");
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
-      try (ResultSet rs = ps.executeQuery()) {
-        if (rs.next()) {
-          return rs.getInt(1);
-        }
-        return 0;
-      }
+  public void clearAdminState(int userId) {
+    Connection c = acquireWriter();
+    try {
+      PreparedStatement ps = prepare(c, "DELETE FROM admin_states WHERE user_id=?");
+      ps.setInt(1, userId);
+      ps.executeUpdate();
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      releaseWriter();
     }
   }
 
-  private Magnet readMagnet(ResultSet rs) throws SQLException {
-    Magnet m = new Magnet();
-    m.id = rs.getInt("id");
-    m.title = rs.getString("title");
-    m.description = rs.getString("description");
-    m.type = rs.getString("type");
-    m.attachment = rs.getString("attachment");
-    m.url = rs.getString("url");
-    m.refCode = rs.getString("ref_code");
-    m.isActive = rs.getInt("is_active") == 1;
-    return m;
-  }
-
-  public synchronized AdminState getAdminState(int userId) {
-    try (PreparedStatement ps = conn.prepareStatement(
-      "SELECT state, data FROM admin_states WHERE user_id=?")) {
-      ps.setInt(1, userId);
-      try (ResultSet rs = ps.executeQuery()) {
-        if (!rs.next()) {
-          return null;
-        }
-        AdminState st = new AdminState();
-        st.userId = userId;
-        st.state = rs.getString("state");
-        st.data = rs.getString("data");
-        return st;
-      }
+  public LongPollCursor getLongPollCursor() {
+    Connection c = acquireReader();
+    try {
+      PreparedStatement ps = prepare(c, "SELECT server, lp_key, ts FROM longpoll_state WHERE id=1");
+      return queryOne(ps, LONG_POLL_CURSOR);
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      releaseReader(c);
     }
   }
 
-  public synchronized void setAdminState(int userId, String state, JsonObject data) {
-    long now = Instant.now().getEpochSecond();
-    String json = data == null ? null : gson.toJson(data);
-    try (PreparedStatement ps = conn.prepareStatement(
-      "INSERT INTO admin_states(user_id, state, data, updated_at) VALUES(?,?,?,?) " +
-        "ON CONFLICT(user_id) DO UPDATE SET state=excluded.state, data=excluded.data, updated_at=excluded.updated_at")) {
-      ps.setInt(1, userId);
-      ps.setString(2, state);
-      ps.setString(3, json);
-      ps.setLong(4, now);
+  public void saveCheckpoint(String server, String key, String ts) {
+    Connection c = acquireWriter();
+    try {
+      PreparedStatement ps = prepare(c, "INSERT INTO longpoll_state(id, server, lp_key, ts, updated_at) VALUES(1,?,?,?,?) " +
+        "ON CONFLICT(id) DO UPDATE SET server=excluded.server, lp_key=excluded.lp_key, ts=excluded.ts, updated_at=excluded.updated_at");
+      ps.setString(1, server);
+      ps.setString(2, key);
+      ps.setString(3, ts);
+      ps.setLong(4, Instant.now().getEpochSecond());
       ps.executeUpdate();
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      releaseWriter();
     }
   }
 
-  public synchronized void clearAdminState(int userId) {
-    try (PreparedStatement ps = conn.prepareStatement("DELETE FROM admin_states WHERE user_id=?")) {
-      ps.setInt(1, userId);
-      ps.executeUpdate();
+  public int pruneHandled() {
+    Connection c = acquireWriter();
+    try {
+      PreparedStatement ps = prepare(c, "DELETE FROM handled_messages WHERE handled_at < ?");
+      ps.setLong(1, Instant.now().getEpochSecond() - HANDLED_RETENTION_SECONDS);
+      return ps.executeUpdate();
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      releaseWriter();
     }
   }
 
-  public synchronized List<Integer> listAllUsers() {
-    try (PreparedStatement ps = conn.prepareStatement("SELECT user_id FROM users")) {
+  public long[] loadHandledKeys(int limit) {
+    Connection c = acquireReader();
+    try {
+      PreparedStatement ps = prepare(c, "SELECT msg_key FROM (SELECT msg_key, handled_at FROM handled_messages ORDER BY handled_at DESC LIMIT ?) " +
+        "ORDER BY handled_at");
+      ps.setInt(1, limit);
       try (ResultSet rs = ps.executeQuery()) {
-        List<Integer> list = new ArrayList<>();
+        long[] keys = new long[limit];
+        int n = 0;
         while (rs.next()) {
-          list.add(rs.getInt(1));
+          keys[n++] = rs.getLong(1);
         }
-        return list;
+        return Arrays.copyOf(keys, n);
       }
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      releaseReader(c);
     }
   }
 
-  public synchronized Stats getStats() {
-    Stats stats = new Stats();
-    stats.startsTotal = countByType("start");
-    stats.startsUnique = countDistinctByType("start");
-    stats.subscribedUnique = countDistinctByType("subscribed");
-    return stats;
+  private void rollbackQuietly(Connection c) {
+    try {
+      c.rollback();
+    } catch (SQLException ignored) {
+    }
   }
 
-  private int countByType(String type) {
-    try (PreparedStatement ps = conn.prepareStatement("SELECT COUNT(*) FROM events WHERE event_type=?")) {
-      ps.setString(1, type);
+  private void restoreAutoCommit(Connection c) {
+    try {
+      c.setAutoCommit(true);
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public int[] audienceChunk(int afterUserId, int limit, boolean onlySubscribed, long minLastSeen) {
+    String sql = "SELECT user_id FROM users WHERE " +
+      (onlySubscribed ? "is_subscribed=1 AND " : "") +
+      "user_id > ? AND last_seen >= ? ORDER BY user_id LIMIT ?";
+    Connection c = acquireReader();
+    try {
+      PreparedStatement ps = prepare(c, sql);
+      ps.setInt(1, afterUserId);
+      ps.setLong(2, minLastSeen);
+      ps.setInt(3, limit);
       try (ResultSet rs = ps.executeQuery()) {
-        if (rs.next()) {
-          return rs.getInt(1);
+        int[] ids = new int[limit];
+        int n = 0;
+        while (rs.next()) {
+          ids[n++] = rs.getInt(1);
         }
-        return 0;
+        return n == limit ? ids : Arrays.copyOf(ids, n);
       }
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      releaseReader(c);
     }
   }
 
-  private int countDistinctByType(String type) {
-    try (PreparedStatement ps = conn.prepareStatement(
-      "SELECT COUNT(DISTINCT user_id) FROM events WHERE event_type=?")) {
-      ps.setString(1, type);
-      try (ResultSet rs = ps.executeQuery()) {
+  public int countAudience(boolean onlySubscribed, long minLastSeen) {
+    String sql = "SELECT COUNT(*) FROM users WHERE " +
+      (onlySubscribed ? "is_subscribed=1 AND " : "") + "last_seen >= ?";
+    Connection c = acquireReader();
+    try {
+      PreparedStatement ps = prepare(c, sql);
+      ps.setLong(1, minLastSeen);
+      return queryInt(ps);
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    } finally {
+      releaseReader(c);
+    }
+  }
+
+  public int createBroadcastJob(BroadcastJob job) {
+    long now = Instant.now().getEpochSecond();
+    Connection c = acquireWriter();
+    try (PreparedStatement ps = c.prepareStatement(
+      "INSERT INTO broadcast_jobs(admin_peer_id, text, attachment, status, total, only_subscribed, min_last_seen, " +
+        "created_at, updated_at) VALUES(?,?,?,?,?,?,?,?,?)", Statement.RETURN_GENERATED_KEYS)) {
+      ps.setInt(1, job.adminPeerId);
+      ps.setString(2, job.text);
+      ps.setString(3, job.attachment);
+      ps.setString(4, BroadcastWorker.STATUS_QUEUED);
+      ps.setInt(5, job.total);
+      ps.setInt(6, job.onlySubscribed ? 1 : 0);
+      ps.setLong(7, job.minLastSeen);
+      ps.setLong(8, now);
+      ps.setLong(9, now);
+      ps.executeUpdate();
+      try (ResultSet rs = ps.getGeneratedKeys()) {
         if (rs.next()) {
           return rs.getInt(1);
         }
-        return 0;
       }
+      throw new RuntimeException("Failed to get broadcast job id");
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    } finally {
+      releaseWriter();
+    }
+  }
+
+  public BroadcastJob nextBroadcastJob() {
+    Connection c = acquireReader();
+    try {
+      PreparedStatement ps = prepare(c, "SELECT " + BROADCAST_JOB_COLUMNS + " FROM broadcast_jobs WHERE status IN (?,?) ORDER BY id LIMIT 1");
+      ps.setString(1, BroadcastWorker.STATUS_RUNNING);
+      ps.setString(2, BroadcastWorker.STATUS_QUEUED);
+      return queryOne(ps, BROADCAST_JOB);
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      releaseReader(c);
     }
   }
 
-  public synchronized List<MagnetStat> getMagnetStats() {
-    String sql = "SELECT m.id, m.title, COUNT(e.id) AS downloads " +
-      "FROM magnets m LEFT JOIN events e ON e.magnet_id=m.id AND e.event_type='magnet_sent' " +
-      "GROUP BY m.id, m.title ORDER BY downloads DESC";
-    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+  public String getBroadcastJobStatus(int id) {
+    Connection c = acquireReader();
+    try {
+      PreparedStatement ps = prepare(c, "SELECT status FROM broadcast_jobs WHERE id=?");
+      ps.setInt(1, id);
+      try (ResultSet rs = ps.executeQuery()) {
+        return rs.next() ? rs.getString(1) : null;
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    } finally {
+      releaseReader(c);
+    }
+  }
+
+  public void setBroadcastJobStatus(int id, String status) {
+    long now = Instant.now().getEpochSecond();
+    Connection c = acquireWriter();
+    try {
+      PreparedStatement ps = prepare(c, "UPDATE broadcast_jobs SET status=?, updated_at=? WHERE id=?");
+      ps.setString(1, status);
+      ps.setLong(2, now);
+      ps.setInt(3, id);
+      ps.executeUpdate();
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    } finally {
+      releaseWriter();
+    }
+  }
+
+  public void saveBroadcastProgress(BroadcastJob job) {
+    long now = Instant.now().getEpochSecond();
+    Connection c = acquireWriter();
+    try {
+      PreparedStatement ps = prepare(c, "UPDATE broadcast_jobs SET cursor_user_id=?, delivered=?, failed=?, updated_at=? WHERE id=?");
+      ps.setInt(1, job.cursorUserId);
+      ps.setInt(2, job.delivered);
+      ps.setInt(3, job.failed);
+      ps.setLong(4, now);
+      ps.setInt(5, job.id);
+      ps.executeUpdate();
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    } finally {
+      releaseWriter();
+    }
+  }
+
+  public int cancelBroadcastJobs() {
+    long now = Instant.now().getEpochSecond();
+    Connection c = acquireWriter();
+    try {
+      PreparedStatement ps = prepare(c, "UPDATE broadcast_jobs SET status=?, updated_at=? WHERE status IN (?,?)");
+      ps.setString(1, BroadcastWorker.STATUS_CANCELLED);
+      ps.setLong(2, now);
+      ps.setString(3, BroadcastWorker.STATUS_RUNNING);
+      ps.setString(4, BroadcastWorker.STATUS_QUEUED);
+      return ps.executeUpdate();
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    } finally {
+      releaseWriter();
+    }
+  }
+
+  public Stats getStats() {
+    Connection c = acquireReader();
+    try {
+      PreparedStatement ps = prepare(c, "SELECT event_type, total, unique_users FROM event_totals WHERE event_type IN ('start','subscribed')");
+      Stats stats = new Stats();
       try (ResultSet rs = ps.executeQuery()) {
-        List<MagnetStat> list = new ArrayList<>();
         while (rs.next()) {
-          MagnetStat ms = new MagnetStat();
-          ms.id = rs.getInt(1);
-          ms.title = rs.getString(2);
-          ms.downloads = rs.getInt(3);
-          list.add(ms);
+          if ("start".equals(rs.getString(1))) {
+            stats.startsTotal = rs.getInt(2);
+            stats.startsUnique = rs.getInt(3);
+          } else {
+            stats.subscribedUnique = rs.getInt(3);
+          }
         }
-        return list;
       }
+      return stats;
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    } finally {
+      releaseReader(c);
+    }
+  }
+
+  public List<MagnetStat> getMagnetStats() {
+    String sql = "SELECT m.id, m.title, COALESCE(t.downloads, 0) AS downloads " +
+      "FROM magnets m LEFT JOIN magnet_totals t ON t.magnet_id=m.id ORDER BY downloads DESC";
+    Connection c = acquireReader();
+    try {
+      PreparedStatement ps = prepare(c, sql);
+      return queryList(ps, MAGNET_STAT);
     } catch (SQLException e) {
       throw new RuntimeException(e);
+    } finally {
+      releaseReader(c);
     }
   }
 }
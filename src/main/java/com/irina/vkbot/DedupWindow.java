@@ -0,0 +1,44 @@
+package com.irina.vkbot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class DedupWindow {
+  private final Map<Long, Boolean> seen;
+  private long duplicates;
+
+  public DedupWindow(int capacity) {
+    this.seen = new LinkedHashMap<>(Math.min(capacity, 1 << 16), 0.75f) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  public synchronized boolean add(long key) {
+    if (seen.put(key, Boolean.TRUE) == null) {
+      return true;
+    }
+    duplicates++;
+    return false;
+  }
+
+  public synchronized void addAll(long[] keys) {
+    for (long key : keys) {
+      seen.put(key, Boolean.TRUE);
+    }
+  }
+
+  public synchronized String metrics() {
+    return "size=" + seen.size() + " duplicates=" + duplicates;
+  }
+
+  static long key(Update update) {
+    LpMessage msg = update.object != null ? update.object.message : null;
+    if (msg == null || msg.conversation_message_id <= 0) {
+      return 0;
+    }
+    return ((long) msg.peer_id << 32) | (msg.conversation_message_id & 0xffffffffL);
+  }
+}
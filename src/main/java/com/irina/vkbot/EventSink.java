@@ -0,0 +1,124 @@
+package com.irina.vkbot;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class EventSink implements Runnable {
+  private final Db db;
+  private final int batchSize;
+  private final long flushIntervalNanos;
+  private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicLong logged = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong flushNanos = new AtomicLong();
+  private volatile Thread thread;
+  private volatile boolean stopping;
+
+  public EventSink(Db db, int batchSize, int flushIntervalMs) {
+    this.db = db;
+    this.batchSize = Math.max(1, batchSize);
+    this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMs));
+  }
+
+  public void start() {
+    Thread t = new Thread(this, "event-sink");
+    t.setDaemon(true);
+    thread = t;
+    t.start();
+  }
+
+  public void log(int userId, String type, Integer magnetId) {
+    queue.offer(new Event(userId, type, magnetId, Instant.now().getEpochSecond()));
+    logged.incrementAndGet();
+    if (pending.incrementAndGet() == batchSize) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  @Override
+  public void run() {
+    boolean ok = true;
+    while (!stopping) {
+      if (!ok || pending.get() < batchSize) {
+        LockSupport.parkNanos(this, flushIntervalNanos);
+      }
+      ok = flush();
+    }
+    flush();
+  }
+
+  public void close() {
+    stopping = true;
+    Thread t = thread;
+    if (t == null) {
+      flush();
+      return;
+    }
+    LockSupport.unpark(t);
+    try {
+      t.join(TimeUnit.SECONDS.toMillis(10));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private boolean flush() {
+    List<Event> batch = new ArrayList<>(batchSize);
+    while (true) {
+      Event e;
+      while (batch.size() < batchSize && (e = queue.poll()) != null) {
+        batch.add(e);
+      }
+      if (batch.isEmpty()) {
+        return true;
+      }
+      long start = System.nanoTime();
+      try {
+        db.insertEvents(batch);
+      } catch (Exception ex) {
+        failures.incrementAndGet();
+        ex.printStackTrace();
+        queue.addAll(batch);
+        return false;
+      }
+      pending.addAndGet(-batch.size());
+      written.addAndGet(batch.size());
+      batches.incrementAndGet();
+      flushNanos.addAndGet(System.nanoTime() - start);
+      batch.clear();
+    }
+  }
+
+  public String metrics() {
+    long b = batches.get();
+    return "pending=" + pending.get() +
+      " logged=" + logged.get() +
+      " written=" + written.get() +
+      " batches=" + b +
+      " failures=" + failures.get() +
+      " flush_avg_ms=" + (b == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(flushNanos.get()) / b);
+  }
+
+  public static class Event {
+    final int userId;
+    final String type;
+    final Integer magnetId;
+    final long ts;
+
+    Event(int userId, String type, Integer magnetId, long ts) {
+      this.userId = userId;
+      this.type = type;
+      this.magnetId = magnetId;
+      this.ts = ts;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.irina.vkbot;
+
+import java.util.Arrays;
+
+class IntLongMap {
+  private static final int EMPTY = 0;
+
+  private int[] keys;
+  private long[] values;
+  private int size;
+  private int mask;
+
+  IntLongMap(int expected) {
+    int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+    keys = new int[capacity];
+    values = new long[capacity];
+    mask = capacity - 1;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean containsKey(int key) {
+    return keys[slot(key)] == key;
+  }
+
+  long get(int key, long missing) {
+    int i = slot(key);
+    return keys[i] == key ? values[i] : missing;
+  }
+
+  void put(int key, long value) {
+    if (key == EMPTY) {
+      throw new IllegalArgumentException("key 0 is reserved");
+    }
+    int i = slot(key);
+    if (keys[i] != key) {
+      keys[i] = key;
+      if (++size * 2 > keys.length) {
+        values[i] = value;
+        grow();
+        return;
+      }
+    }
+    values[i] = value;
+  }
+
+  void clear() {
+    Arrays.fill(keys, EMPTY);
+    size = 0;
+  }
+
+  int drainTo(int[] outKeys, long[] outValues) {
+    int n = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != EMPTY) {
+        outKeys[n] = keys[i];
+        outValues[n] = values[i];
+        n++;
+      }
+    }
+    clear();
+    return n;
+  }
+
+  private int slot(int key) {
+    int i = mix(key) & mask;
+    while (keys[i] != EMPTY && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  private void grow() {
+    int[] oldKeys = keys;
+    long[] oldValues = values;
+    keys = new int[oldKeys.length * 2];
+    values = new long[oldValues.length * 2];
+    mask = keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int j = slot(oldKeys[i]);
+        keys[j] = oldKeys[i];
+        values[j] = oldValues[i];
+      }
+    }
+  }
+
+  private static int mix(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -1,39 +1,159 @@
 package com.irina.vkbot;
 
-import com.google.gson.Gson;
-
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 public class KeyboardBuilder {
-  private static final Gson gson = new Gson();
+  static final int MAX_ROWS = 10;
+  static final int MAX_BUTTONS_PER_ROW = 5;
+  static final int MAX_BUTTONS = 40;
+  static final int MAX_LABEL_LENGTH = 40;
+  static final int MAX_PAYLOAD_LENGTH = 255;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final ThreadLocal<StringBuilder> OUT = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+  private static final ThreadLocal<StringBuilder> PAYLOAD = ThreadLocal.withInitial(() -> new StringBuilder(128));
 
   public static String keyboard(List<List<Button>> rows, boolean oneTime) {
-    Map<String, Object> root = new LinkedHashMap<>();
-    root.put("one_time", oneTime);
-    List<List<Map<String, Object>>> buttons = new ArrayList<>();
-    for (List<Button> row : rows) {
-      List<Map<String, Object>> rowButtons = new ArrayList<>();
-      for (Button b : row) {
-        Map<String, Object> action = new LinkedHashMap<>();
-        action.put("type", "text");
-        action.put("label", b.label);
-        if (b.payload != null) {
-          action.put("payload", gson.toJson(b.payload));
-        }
-        Map<String, Object> btn = new LinkedHashMap<>();
-        btn.put("action", action);
-        if (b.color != null) {
-          btn.put("color", b.color);
+    if (rows.size() > MAX_ROWS) {
+      throw new IllegalArgumentException("Keyboard has " + rows.size() + " rows, VK allows " + MAX_ROWS);
+    }
+    StringBuilder out = OUT.get();
+    out.setLength(0);
+    out.append("{\"one_time\":").append(oneTime).append(",\"buttons\":[");
+    int total = 0;
+    for (int r = 0; r < rows.size(); r++) {
+      List<Button> row = rows.get(r);
+      if (row.size() > MAX_BUTTONS_PER_ROW) {
+        throw new IllegalArgumentException("Keyboard row " + r + " has " + row.size() + " buttons, VK allows " + MAX_BUTTONS_PER_ROW);
+      }
+      total += row.size();
+      if (total > MAX_BUTTONS) {
+        throw new IllegalArgumentException("Keyboard has more than " + MAX_BUTTONS + " buttons");
+      }
+      if (r > 0) {
+        out.append(',');
+      }
+      out.append('[');
+      for (int i = 0; i < row.size(); i++) {
+        if (i > 0) {
+          out.append(',');
         }
-        rowButtons.add(btn);
+        writeButton(out, row.get(i));
+      }
+      out.append(']');
+    }
+    out.append("]}");
+    return out.toString();
+  }
+
+  private static void writeButton(StringBuilder out, Button b) {
+    out.append("{\"action\":{\"type\":\"text\"");
+    if (b.label != null) {
+      if (b.label.length() > MAX_LABEL_LENGTH) {
+        throw new IllegalArgumentException("Button label is longer than " + MAX_LABEL_LENGTH + " chars: " + b.label);
+      }
+      out.append(",\"label\":");
+      writeString(out, b.label);
+    }
+    if (b.payload != null) {
+      StringBuilder payload = PAYLOAD.get();
+      payload.setLength(0);
+      writeObject(payload, b.payload);
+      if (payload.length() > MAX_PAYLOAD_LENGTH) {
+        throw new IllegalArgumentException("Button payload is longer than " + MAX_PAYLOAD_LENGTH + " chars: " + payload);
       }
-      buttons.add(rowButtons);
+      out.append(",\"payload\":");
+      writeString(out, payload);
     }
-    root.put("buttons", buttons);
-    return gson.toJson(root);
+    out.append('}');
+    if (b.color != null) {
+      out.append(",\"color\":");
+      writeString(out, b.color);
+    }
+    out.append('}');
+  }
+
+  private static void writeObject(StringBuilder out, Map<String, Object> map) {
+    out.append('{');
+    boolean first = true;
+    for (Map.Entry<String, Object> e : map.entrySet()) {
+      Object value = e.getValue();
+      if (value == null) {
+        continue;
+      }
+      if (!first) {
+        out.append(',');
+      }
+      first = false;
+      writeString(out, e.getKey());
+      out.append(':');
+      if (value instanceof String) {
+        writeString(out, (String) value);
+      } else if (value instanceof Integer || value instanceof Long || value instanceof Boolean) {
+        out.append(value);
+      } else {
+        throw new IllegalArgumentException("Unsupported payload value: " + value.getClass().getName());
+      }
+    }
+    out.append('}');
+  }
+
+  // Mirrors Gson's default (HTML-safe) escaping so the output stays byte-identical to gson.toJson.
+  private static void writeString(StringBuilder out, CharSequence s) {
+    out.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          out.append("\\\"");
+          break;
+        case '\\':
+          out.append("\\\\");
+          break;
+        case '\t':
+          out.append("\\t");
+          break;
+        case '\b':
+          out.append("\\b");
+          break;
+        case '\n':
+          out.append("\\n");
+          break;
+        case '\r':
+          out.append("\\r");
+          break;
+        case '\f':
+          out.append("\\f");
+          break;
+        case '<':
+        case '>':
+        case '&':
+        case '=':
+        case '\'':
+        case '\u2028':
+        case '\u2029':
+          writeUnicodeEscape(out, c);
+          break;
+        default:
+          if (c < 0x20) {
+            writeUnicodeEscape(out, c);
+          } else {
+            out.append(c);
+          }
+      }
+    }
+    out.append('"');
+  }
+
+  private static void writeUnicodeEscape(StringBuilder out, char c) {
+    out.append("\\u")
+      .append(HEX[(c >> 12) & 0xF])
+      .append(HEX[(c >> 8) & 0xF])
+      .append(HEX[(c >> 4) & 0xF])
+      .append(HEX[c & 0xF]);
   }
 
   public static Button button(String label, Map<String, Object> payload, String color) {
@@ -1,6 +1,5 @@
 package com.irina.vkbot;
 
-import com.google.gson.Gson;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -8,6 +7,7 @@ import okhttp3.Response;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.util.Collections;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 public class LongPollClient {
@@ -15,7 +15,11 @@ public class LongPollClient {
     .readTimeout(70, TimeUnit.SECONDS)
     .callTimeout(75, TimeUnit.SECONDS)
     .build();
-  private final Gson gson = new Gson();
+  private final LongPollDecoder decoder;
+
+  public LongPollClient(Set<String> acceptedTypes) {
+    this.decoder = new LongPollDecoder(acceptedTypes);
+  }
 
   public LongPollResponse poll(String serverUrl, String key, String ts, int wait) {
     String url = serverUrl +
@@ -30,15 +34,21 @@ public class LongPollClient {
       if (!response.isSuccessful()) {
         throw new IOException("Unexpected code " + response);
       }
-      String body = response.body() != null ? response.body().string() : "{}";
-      return gson.fromJson(body, LongPollResponse.class);
+      if (response.body() == null) {
+        return empty(ts);
+      }
+      return decoder.decode(response.body().charStream());
     } catch (SocketTimeoutException e) {
-      LongPollResponse resp = new LongPollResponse();
-      resp.ts = ts;
-      resp.updates = Collections.emptyList();
-      return resp;
+      return empty(ts);
     } catch (IOException e) {
       throw new RuntimeException("Long poll failed", e);
     }
   }
+
+  private LongPollResponse empty(String ts) {
+    LongPollResponse resp = new LongPollResponse();
+    resp.ts = ts;
+    resp.updates = Collections.emptyList();
+    return resp;
+  }
 }
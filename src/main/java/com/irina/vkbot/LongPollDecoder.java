@@ -0,0 +1,216 @@
+package com.irina.vkbot;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+public class LongPollDecoder {
+  private final Set<String> acceptedTypes;
+
+  public LongPollDecoder(Set<String> acceptedTypes) {
+    this.acceptedTypes = acceptedTypes;
+  }
+
+  public LongPollResponse decode(Reader in) throws IOException {
+    LongPollResponse resp = new LongPollResponse();
+    resp.updates = new ArrayList<>();
+    JsonReader r = new JsonReader(in);
+    r.beginObject();
+    while (r.hasNext()) {
+      switch (r.nextName()) {
+        case "failed":
+          resp.failed = r.nextInt();
+          break;
+        case "ts":
+          resp.ts = nextString(r);
+          break;
+        case "updates":
+          r.beginArray();
+          while (r.hasNext()) {
+            Update update = readUpdate(r);
+            if (update != null) {
+              resp.updates.add(update);
+            }
+          }
+          r.endArray();
+          break;
+        default:
+          r.skipValue();
+      }
+    }
+    r.endObject();
+    return resp;
+  }
+
+  public CallbackEvent decodeCallback(Reader in) throws IOException {
+    CallbackEvent event = new CallbackEvent();
+    event.update = readUpdate(new JsonReader(in), event);
+    return event;
+  }
+
+  private Update readUpdate(JsonReader r) throws IOException {
+    return readUpdate(r, null);
+  }
+
+  private Update readUpdate(JsonReader r, CallbackEvent envelope) throws IOException {
+    String type = null;
+    UpdateObject object = null;
+    r.beginObject();
+    while (r.hasNext()) {
+      String name = r.nextName();
+      if ("type".equals(name)) {
+        type = nextString(r);
+      } else if ("object".equals(name) && (type == null || acceptedTypes.contains(type))) {
+        object = readObject(r);
+      } else if (envelope != null && "group_id".equals(name)) {
+        envelope.groupId = r.nextInt();
+      } else if (envelope != null && "secret".equals(name)) {
+        envelope.secret = nextString(r);
+      } else {
+        r.skipValue();
+      }
+    }
+    r.endObject();
+    if (envelope != null) {
+      envelope.type = type;
+    }
+    if (type == null || !acceptedTypes.contains(type)) {
+      return null;
+    }
+    Update update = new Update();
+    update.type = type;
+    update.object = object;
+    return update;
+  }
+
+  private UpdateObject readObject(JsonReader r) throws IOException {
+    if (r.peek() != JsonToken.BEGIN_OBJECT) {
+      r.skipValue();
+      return null;
+    }
+    UpdateObject object = new UpdateObject();
+    r.beginObject();
+    while (r.hasNext()) {
+      String name = r.nextName();
+      if ("message".equals(name) && r.peek() == JsonToken.BEGIN_OBJECT) {
+        object.message = readMessage(r);
+      } else if ("user_id".equals(name) && r.peek() == JsonToken.NUMBER) {
+        object.user_id = r.nextInt();
+      } else {
+        r.skipValue();
+      }
+    }
+    r.endObject();
+    return object;
+  }
+
+  private LpMessage readMessage(JsonReader r) throws IOException {
+    LpMessage msg = new LpMessage();
+    r.beginObject();
+    while (r.hasNext()) {
+      switch (r.nextName()) {
+        case "id":
+          msg.id = r.nextInt();
+          break;
+        case "conversation_message_id":
+          msg.conversation_message_id = r.nextInt();
+          break;
+        case "from_id":
+          msg.from_id = r.nextInt();
+          break;
+        case "peer_id":
+          msg.peer_id = r.nextInt();
+          break;
+        case "text":
+          msg.text = nextString(r);
+          break;
+        case "payload":
+          msg.payload = nextString(r);
+          break;
+        case "ref":
+          msg.ref = nextString(r);
+          break;
+        case "attachments":
+          msg.attachments = readAttachments(r);
+          break;
+        default:
+          r.skipValue();
+      }
+    }
+    r.endObject();
+    return msg;
+  }
+
+  private List<LpAttachment> readAttachments(JsonReader r) throws IOException {
+    if (r.peek() != JsonToken.BEGIN_ARRAY) {
+      r.skipValue();
+      return null;
+    }
+    List<LpAttachment> list = null;
+    r.beginArray();
+    while (r.hasNext()) {
+      LpDoc doc = null;
+      r.beginObject();
+      while (r.hasNext()) {
+        if ("doc".equals(r.nextName()) && r.peek() == JsonToken.BEGIN_OBJECT) {
+          doc = readDoc(r);
+        } else {
+          r.skipValue();
+        }
+      }
+      r.endObject();
+      if (doc != null) {
+        LpAttachment att = new LpAttachment();
+        att.type = "doc";
+        att.doc = doc;
+        if (list == null) {
+          list = new ArrayList<>(1);
+        }
+        list.add(att);
+      }
+    }
+    r.endArray();
+    return list;
+  }
+
+  private LpDoc readDoc(JsonReader r) throws IOException {
+    LpDoc doc = new LpDoc();
+    r.beginObject();
+    while (r.hasNext()) {
+      switch (r.nextName()) {
+        case "id":
+          doc.id = r.nextInt();
+          break;
+        case "owner_id":
+          doc.owner_id = r.nextInt();
+          break;
+        case "access_key":
+          doc.access_key = nextString(r);
+          break;
+        case "title":
+          doc.title = nextString(r);
+          break;
+        case "url":
+          doc.url = nextString(r);
+          break;
+        default:
+          r.skipValue();
+      }
+    }
+    r.endObject();
+    return doc;
+  }
+
+  private static String nextString(JsonReader r) throws IOException {
+    if (r.peek() == JsonToken.NULL) {
+      r.nextNull();
+      return null;
+    }
+    return r.nextString();
+  }
+}
@@ -0,0 +1,106 @@
+package com.irina.vkbot;
+
+import com.vk.api.sdk.client.VkApiClient;
+import com.vk.api.sdk.client.actors.GroupActor;
+import com.vk.api.sdk.objects.groups.responses.GetLongPollServerResponse;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+public class LongPollIngestor implements Runnable {
+  private final Config config;
+  private final Db db;
+  private final VkApiClient vk;
+  private final GroupActor actor;
+  private final VkRateLimiter limiter;
+  private final UpdateQueue queue;
+  private final CursorTracker tracker;
+  private final LongPollClient longPoll;
+  private volatile boolean stopped;
+
+  public LongPollIngestor(Config config, Db db, VkApiClient vk, GroupActor actor, VkRateLimiter limiter,
+                          UpdateQueue queue, CursorTracker tracker, Set<String> acceptedTypes) {
+    this.config = config;
+    this.db = db;
+    this.vk = vk;
+    this.actor = actor;
+    this.limiter = limiter;
+    this.queue = queue;
+    this.tracker = tracker;
+    this.longPoll = new LongPollClient(acceptedTypes);
+  }
+
+  @Override
+  public void run() {
+    String server = null;
+    String key = null;
+    String ts = null;
+    LongPollCursor saved = db.getLongPollCursor();
+    if (saved != null) {
+      server = saved.server;
+      key = saved.key;
+      ts = saved.ts;
+      tracker.setServer(server, key);
+      System.out.println("Resuming long poll from ts=" + ts);
+    }
+
+    while (!stopped && !Thread.currentThread().isInterrupted()) {
+      try {
+        if (server == null || key == null) {
+          GetLongPollServerResponse resp = limiter.execute(VkRateLimiter.Lane.INTERACTIVE,
+            vk.groups().getLongPollServer(actor, config.groupId));
+          server = resp.getServer();
+          key = resp.getKey();
+          if (ts == null) {
+            ts = resp.getTs();
+          }
+          tracker.setServer(server, key);
+        }
+        LongPollResponse response = longPoll.poll(server, key, ts, config.longPollWait);
+        if (stopped) {
+          return;
+        }
+        if (response.failed != null) {
+          if (response.failed == 1) {
+            System.out.println("Long poll history lost, skipping to ts=" + response.ts);
+            ts = response.ts;
+          } else if (response.failed == 2) {
+            key = null;
+          } else {
+            server = null;
+            key = null;
+            ts = null;
+          }
+          continue;
+        }
+        ts = response.ts;
+        List<Update> updates = response.updates != null ? response.updates : Collections.emptyList();
+        CursorTracker.Checkpoint checkpoint = tracker.begin(ts, updates.size());
+        for (Update update : updates) {
+          update.checkpoint = checkpoint;
+          queue.put(update);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (Exception e) {
+        e.printStackTrace();
+        server = null;
+        key = null;
+        sleep(2000);
+      }
+    }
+  }
+
+  public void stop() {
+    stopped = true;
+  }
+
+  private void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -8,13 +8,22 @@ class LongPollResponse {
   List<Update> updates;
 }
 
+class CallbackEvent {
+  String type;
+  int groupId;
+  String secret;
+  Update update;
+}
+
 class Update {
   String type;
   UpdateObject object;
+  CursorTracker.Checkpoint checkpoint;
 }
 
 class UpdateObject {
   LpMessage message;
+  int user_id;
 }
 
 class LpMessage {
@@ -25,7 +34,6 @@ class LpMessage {
   String text;
   String payload;
   String ref;
-  String ref_source;
   List<LpAttachment> attachments;
 }
 
@@ -0,0 +1,140 @@
+package com.irina.vkbot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+public class MagnetCatalog {
+  private final Db db;
+  private volatile Snapshot snapshot = new Snapshot(0, List.of());
+  private long version;
+
+  public MagnetCatalog(Db db) {
+    this.db = db;
+  }
+
+  public Snapshot snapshot() {
+    return snapshot;
+  }
+
+  public synchronized void reload() {
+    snapshot = new Snapshot(++version, db.loadMagnets());
+  }
+
+  public int create(Magnet m) {
+    int id = db.createMagnet(m);
+    reload();
+    return id;
+  }
+
+  public void update(Magnet m) {
+    db.updateMagnet(m);
+    reload();
+  }
+
+  public void delete(int id) {
+    db.deleteMagnet(id);
+    reload();
+  }
+
+  public String metrics() {
+    Snapshot s = snapshot;
+    return "version=" + s.version + " magnets=" + s.all.size() + " active=" + s.active.size() +
+      " keyboards=" + s.pageKeyboards.size();
+  }
+
+  static class Page {
+    List<Magnet> items;
+    int prevCursor;
+    int nextCursor;
+    boolean aligned;
+
+    boolean hasPrev() {
+      return prevCursor != 0;
+    }
+
+    boolean hasNext() {
+      return nextCursor != 0;
+    }
+  }
+
+  public static class Snapshot {
+    final long version;
+    private final List<Magnet> all;
+    private final List<Magnet> active;
+    private final Map<Integer, Magnet> byId;
+    private final Map<String, Magnet> byRef;
+    private final Map<Integer, String> pageKeyboards = new ConcurrentHashMap<>();
+
+    Snapshot(long version, List<Magnet> magnets) {
+      this.version = version;
+      List<Magnet> active = new ArrayList<>();
+      Map<Integer, Magnet> byId = new HashMap<>();
+      Map<String, Magnet> byRef = new HashMap<>();
+      for (Magnet m : magnets) {
+        byId.put(m.id, m);
+        if (m.refCode != null) {
+          byRef.put(m.refCode, m);
+        }
+        if (m.isActive) {
+          active.add(m);
+        }
+      }
+      this.all = Collections.unmodifiableList(new ArrayList<>(magnets));
+      this.active = Collections.unmodifiableList(active);
+      this.byId = byId;
+      this.byRef = byRef;
+    }
+
+    Magnet byId(int id) {
+      return byId.get(id);
+    }
+
+    Magnet byRef(String ref) {
+      return ref == null ? null : byRef.get(ref);
+    }
+
+    int count(boolean onlyActive) {
+      return (onlyActive ? active : all).size();
+    }
+
+    Page page(boolean onlyActive, int cursor, int limit) {
+      List<Magnet> list = onlyActive ? active : all;
+      int from = cursor <= 0 ? 0 : indexFrom(list, cursor);
+      int to = Math.min(list.size(), from + limit);
+      Page page = new Page();
+      page.items = list.subList(from, to);
+      page.prevCursor = from > 0 ? list.get(Math.max(0, from - limit)).id : 0;
+      page.nextCursor = to < list.size() ? list.get(to).id : 0;
+      page.aligned = cursor <= 0 || (from < list.size() && list.get(from).id == cursor);
+      return page;
+    }
+
+    int cursorAt(boolean onlyActive, int index) {
+      List<Magnet> list = onlyActive ? active : all;
+      return index > 0 && index < list.size() ? list.get(index).id : 0;
+    }
+
+    private static int indexFrom(List<Magnet> list, int cursor) {
+      int lo = 0;
+      int hi = list.size();
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (list.get(mid).id > cursor) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    String pageKeyboard(int cursor, IntFunction<String> render) {
+      return pageKeyboards.computeIfAbsent(cursor, render::apply);
+    }
+  }
+}
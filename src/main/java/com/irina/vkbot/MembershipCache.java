@@ -0,0 +1,70 @@
+package com.irina.vkbot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class MembershipCache {
+  private final Map<Integer, Entry> entries;
+  private final long ttlNanos;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  public MembershipCache(int ttlSeconds, int maxEntries) {
+    this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    this.entries = new LinkedHashMap<>(Math.min(Math.max(maxEntries, 16), 1 << 16), 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+        if (size() > maxEntries) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  public synchronized Boolean get(int userId) {
+    Entry e = entries.get(userId);
+    if (e != null && System.nanoTime() - e.expiresAt > 0) {
+      entries.remove(userId);
+      e = null;
+    }
+    if (e == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return e.member;
+  }
+
+  public synchronized void put(int userId, boolean member) {
+    if (ttlNanos <= 0) {
+      return;
+    }
+    entries.put(userId, new Entry(member, System.nanoTime() + ttlNanos));
+  }
+
+  public synchronized void refreshIfPresent(int userId, boolean member) {
+    entries.computeIfPresent(userId, (id, e) -> new Entry(member, System.nanoTime() + ttlNanos));
+  }
+
+  public synchronized void invalidate(int userId) {
+    entries.remove(userId);
+  }
+
+  public synchronized String metrics() {
+    return "size=" + entries.size() + " hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+  }
+
+  private static class Entry {
+    final boolean member;
+    final long expiresAt;
+
+    Entry(boolean member, long expiresAt) {
+      this.member = member;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package com.irina.vkbot;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+public class MetricsReporter {
+  private final Map<String, Supplier<String>> sources = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "metrics");
+    t.setDaemon(true);
+    return t;
+  });
+
+  public void register(String name, Supplier<String> source) {
+    sources.put(name, source);
+  }
+
+  public void start(int intervalSeconds) {
+    if (intervalSeconds <= 0) {
+      return;
+    }
+    scheduler.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  public void report() {
+    for (Map.Entry<String, Supplier<String>> e : sources.entrySet()) {
+      try {
+        System.out.println("[METRICS] " + e.getKey() + ": " + e.getValue().get());
+      } catch (Exception ex) {
+        ex.printStackTrace();
+      }
+    }
+  }
+}
@@ -18,12 +18,26 @@ class Magnet {
   String url;
   String refCode;
   boolean isActive;
+
+  Magnet copy() {
+    Magnet m = new Magnet();
+    m.id = id;
+    m.title = title;
+    m.description = description;
+    m.type = type;
+    m.attachment = attachment;
+    m.url = url;
+    m.refCode = refCode;
+    m.isActive = isActive;
+    return m;
+  }
 }
 
 class AdminState {
   int userId;
   String state;
   String data;
+  long updatedAt;
 }
 
 class Stats {
@@ -37,3 +51,23 @@ class MagnetStat {
   String title;
   int downloads;
 }
+
+class LongPollCursor {
+  String server;
+  String key;
+  String ts;
+}
+
+class BroadcastJob {
+  int id;
+  int adminPeerId;
+  String text;
+  String attachment;
+  String status;
+  int cursorUserId;
+  int total;
+  int delivered;
+  int failed;
+  boolean onlySubscribed;
+  long minLastSeen;
+}
@@ -0,0 +1,54 @@
+package com.irina.vkbot;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.StringReader;
+
+public class PayloadDecoder {
+  public static PayloadData decode(String payload) {
+    if (payload == null || payload.isEmpty()) {
+      return null;
+    }
+    try {
+      JsonReader r = new JsonReader(new StringReader(payload));
+      r.setLenient(true);
+      if (r.peek() != JsonToken.BEGIN_OBJECT) {
+        return null;
+      }
+      PayloadData pd = new PayloadData();
+      r.beginObject();
+      while (r.hasNext()) {
+        switch (r.nextName()) {
+          case "cmd":
+            pd.cmd = r.nextString();
+            break;
+          case "id":
+            pd.id = r.nextInt();
+            break;
+          case "page":
+            pd.page = r.nextInt();
+            break;
+          case "cursor":
+            pd.cursor = r.nextInt();
+            break;
+          case "type":
+            pd.type = r.nextString();
+            break;
+          case "field":
+            pd.field = r.nextString();
+            break;
+          case "value":
+            pd.value = r.nextInt();
+            break;
+          default:
+            r.skipValue();
+        }
+      }
+      r.endObject();
+      return pd;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package com.irina.vkbot;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+public class PeerDispatcher {
+  private static final Update STOP = new Update();
+
+  private final Shard[] shards;
+  private final Consumer<Update> handler;
+
+  public PeerDispatcher(int shardCount, int shardCapacity, Consumer<Update> handler) {
+    this.handler = handler;
+    this.shards = new Shard[Math.max(1, shardCount)];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new Shard(i, shardCapacity);
+    }
+  }
+
+  public void start() {
+    for (Shard shard : shards) {
+      shard.thread.start();
+    }
+  }
+
+  public void dispatch(Update update) throws InterruptedException {
+    int key = peerKey(update);
+    shards[Math.floorMod(key, shards.length)].queue.put(update);
+  }
+
+  public void shutdown(long timeoutMs) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    try {
+      for (Shard shard : shards) {
+        shard.queue.put(STOP);
+      }
+      for (Shard shard : shards) {
+        shard.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public String metrics() {
+    int busy = 0;
+    int pending = 0;
+    int maxDepth = 0;
+    long handled = 0;
+    for (Shard shard : shards) {
+      int depth = shard.queue.size();
+      pending += depth;
+      maxDepth = Math.max(maxDepth, depth);
+      if (shard.busy) {
+        busy++;
+      }
+      handled += shard.handled.get();
+    }
+    return "shards=" + shards.length +
+      " busy=" + busy +
+      " pending=" + pending +
+      " max_shard_depth=" + maxDepth +
+      " handled=" + handled;
+  }
+
+  static int peerKey(Update update) {
+    if (update.object != null && update.object.message != null) {
+      return update.object.message.peer_id;
+    }
+    if (update.object != null) {
+      return update.object.user_id;
+    }
+    return 0;
+  }
+
+  private class Shard implements Runnable {
+    final BlockingQueue<Update> queue;
+    final Thread thread;
+    final AtomicLong handled = new AtomicLong();
+    volatile boolean busy;
+
+    Shard(int index, int capacity) {
+      this.queue = new ArrayBlockingQueue<>(capacity);
+      this.thread = new Thread(this, "dispatch-" + index);
+      this.thread.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (!Thread.currentThread().isInterrupted()) {
+        Update update;
+        try {
+          update = queue.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        if (update == STOP) {
+          return;
+        }
+        busy = true;
+        try {
+          handler.accept(update);
+        } catch (Exception e) {
+          e.printStackTrace();
+        } finally {
+          busy = false;
+          handled.incrementAndGet();
+        }
+      }
+    }
+  }
+}
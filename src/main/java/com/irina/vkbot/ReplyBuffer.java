@@ -0,0 +1,168 @@
+package com.irina.vkbot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class ReplyBuffer {
+  static final int MAX_TEXT_LENGTH = 4096;
+  static final int MAX_ATTACHMENTS = 10;
+  private static final String SEPARATOR = "\n\n";
+
+  interface Sender {
+    boolean send(int peerId, String text, String keyboard, String attachment);
+  }
+
+  private final Sender sender;
+  private final List<Reply> pending = new ArrayList<>();
+  private boolean open;
+
+  ReplyBuffer(Sender sender) {
+    this.sender = sender;
+  }
+
+  void open() {
+    open = true;
+  }
+
+  boolean isOpen() {
+    return open;
+  }
+
+  void add(int peerId, String text, String keyboard, String attachment, String fallback) {
+    Part part = new Part(text != null ? text : "", keyboard, attachment, fallback);
+    Reply last = pending.isEmpty() ? null : pending.get(pending.size() - 1);
+    if (last == null || !last.accepts(peerId, part)) {
+      last = new Reply(peerId);
+      pending.add(last);
+    }
+    last.add(part);
+  }
+
+  void drain() {
+    for (Reply reply : pending) {
+      if (sender.send(reply.peerId, reply.text(), reply.keyboard, reply.attachments())) {
+        continue;
+      }
+      if (reply.attachmentCount > 0) {
+        String text = reply.fallbackText();
+        if (!text.isEmpty()) {
+          sender.send(reply.peerId, text, reply.keyboard, null);
+        }
+      }
+    }
+    pending.clear();
+  }
+
+  void close() {
+    try {
+      drain();
+    } finally {
+      open = false;
+    }
+  }
+
+  private static int countAttachments(String attachment) {
+    if (attachment == null || attachment.isEmpty()) {
+      return 0;
+    }
+    int n = 1;
+    for (int i = 0; i < attachment.length(); i++) {
+      if (attachment.charAt(i) == ',') {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  private static class Part {
+    final String text;
+    final String keyboard;
+    final String attachment;
+    final String fallback;
+
+    Part(String text, String keyboard, String attachment, String fallback) {
+      this.text = text;
+      this.keyboard = keyboard;
+      this.attachment = attachment;
+      this.fallback = fallback;
+    }
+  }
+
+  private static class Reply {
+    final int peerId;
+    final List<Part> parts = new ArrayList<>(4);
+    String keyboard;
+    int textLength;
+    int attachmentCount;
+
+    Reply(int peerId) {
+      this.peerId = peerId;
+    }
+
+    boolean accepts(int peerId, Part part) {
+      if (this.peerId != peerId || keyboard != null) {
+        return false;
+      }
+      int length = textLength;
+      if (!part.text.isEmpty()) {
+        length += (length > 0 ? SEPARATOR.length() : 0) + part.text.length();
+      }
+      return length <= MAX_TEXT_LENGTH && attachmentCount + countAttachments(part.attachment) <= MAX_ATTACHMENTS;
+    }
+
+    void add(Part part) {
+      if (!part.text.isEmpty()) {
+        textLength += (textLength > 0 ? SEPARATOR.length() : 0) + part.text.length();
+      }
+      attachmentCount += countAttachments(part.attachment);
+      keyboard = part.keyboard;
+      parts.add(part);
+    }
+
+    String text() {
+      StringBuilder sb = new StringBuilder(textLength);
+      for (Part p : parts) {
+        append(sb, p.text);
+      }
+      return sb.toString();
+    }
+
+    String attachments() {
+      if (attachmentCount == 0) {
+        return null;
+      }
+      StringBuilder sb = new StringBuilder();
+      for (Part p : parts) {
+        if (p.attachment != null && !p.attachment.isEmpty()) {
+          if (sb.length() > 0) {
+            sb.append(',');
+          }
+          sb.append(p.attachment);
+        }
+      }
+      return sb.toString();
+    }
+
+    String fallbackText() {
+      StringBuilder sb = new StringBuilder();
+      for (Part p : parts) {
+        if (p.attachment == null || p.attachment.isEmpty()) {
+          append(sb, p.text);
+        } else if (p.fallback != null) {
+          append(sb, p.fallback);
+        }
+      }
+      return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, String text) {
+      if (text.isEmpty()) {
+        return;
+      }
+      if (sb.length() > 0) {
+        sb.append(SEPARATOR);
+      }
+      sb.append(text);
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package com.irina.vkbot;
+
+import com.irina.vkbot.VkRateLimiter.Lane;
+import com.vk.api.sdk.client.VkApiClient;
+import com.vk.api.sdk.client.actors.GroupActor;
+import com.vk.api.sdk.objects.base.BoolInt;
+import com.vk.api.sdk.objects.groups.responses.IsMemberUserIdsResponse;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class SubscriptionReconciler implements Runnable {
+  static final int USERS_PER_CALL = 500;
+  static final int CHUNK_ATTEMPTS = 3;
+  static final long RETRY_BACKOFF_MS = 2000;
+
+  private final Config config;
+  private final Db db;
+  private final VkApiClient vk;
+  private final GroupActor actor;
+  private final VkRateLimiter limiter;
+  private final MembershipCache membership;
+
+  public SubscriptionReconciler(Config config, Db db, VkApiClient vk, GroupActor actor, VkRateLimiter limiter,
+                                MembershipCache membership) {
+    this.config = config;
+    this.db = db;
+    this.vk = vk;
+    this.actor = actor;
+    this.limiter = limiter;
+    this.membership = membership;
+  }
+
+  public void start() {
+    if (config.reconcileIntervalHours <= 0) {
+      return;
+    }
+    Thread t = new Thread(this, "subscription-reconciler");
+    t.setDaemon(true);
+    t.setPriority(Thread.MIN_PRIORITY);
+    t.start();
+  }
+
+  @Override
+  public void run() {
+    sleep(TimeUnit.MINUTES.toMillis(1));
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        reconcile();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+      sleep(TimeUnit.HOURS.toMillis(config.reconcileIntervalHours));
+    }
+  }
+
+  private void reconcile() {
+    long started = System.currentTimeMillis();
+    int cursor = 0;
+    int checked = 0;
+    int subscribed = 0;
+    int skipped = 0;
+    while (!Thread.currentThread().isInterrupted()) {
+      int[] ids = db.audienceChunk(cursor, USERS_PER_CALL, false, 0);
+      if (ids.length == 0) {
+        break;
+      }
+      Integer[] boxed = new Integer[ids.length];
+      for (int i = 0; i < ids.length; i++) {
+        boxed[i] = ids[i];
+      }
+      cursor = ids[ids.length - 1];
+      List<IsMemberUserIdsResponse> resp = checkChunk(boxed);
+      if (resp == null) {
+        skipped += ids.length;
+        continue;
+      }
+      int[] userIds = new int[resp.size()];
+      boolean[] members = new boolean[resp.size()];
+      int n = 0;
+      for (IsMemberUserIdsResponse r : resp) {
+        if (r.getUserId() == null) {
+          continue;
+        }
+        userIds[n] = r.getUserId();
+        members[n] = r.getMember() == BoolInt.YES;
+        if (members[n]) {
+          subscribed++;
+        }
+        n++;
+      }
+      db.setSubscribedBatch(userIds, members, n);
+      for (int i = 0; i < n; i++) {
+        membership.refreshIfPresent(userIds[i], members[i]);
+      }
+      checked += n;
+      if (config.reconcilePauseMs > 0) {
+        sleep(config.reconcilePauseMs);
+      }
+    }
+    System.out.println("Subscription reconcile done: checked=" + checked + " subscribed=" + subscribed + " skipped=" + skipped +
+      " took_ms=" + (System.currentTimeMillis() - started));
+  }
+
+  private List<IsMemberUserIdsResponse> checkChunk(Integer[] userIds) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return limiter.execute(Lane.BACKGROUND,
+          vk.groups().isMemberWithUserIds(actor, String.valueOf(config.groupId), userIds));
+      } catch (Exception e) {
+        if (attempt >= CHUNK_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+          e.printStackTrace();
+          return null;
+        }
+        sleep(RETRY_BACKOFF_MS * attempt);
+      }
+    }
+  }
+
+  private void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.irina.vkbot;
+
+public class UnitOfWork {
+  private final Db db;
+  final int userId;
+  private User user;
+  private boolean loaded;
+
+  final boolean isAdmin;
+  boolean touched;
+  long seenAt;
+  boolean pendingRefDirty;
+  String pendingRef;
+  boolean subscribedDirty;
+  boolean subscribed;
+  long handledKey;
+
+  public UnitOfWork(Db db, int userId, boolean isAdmin) {
+    this.db = db;
+    this.userId = userId;
+    this.isAdmin = isAdmin;
+  }
+
+  User user() {
+    if (!loaded) {
+      user = db.getUser(userId);
+      loaded = true;
+    }
+    return user;
+  }
+
+  void touch(long now) {
+    this.touched = true;
+    this.seenAt = now;
+  }
+
+  String pendingRef() {
+    if (pendingRefDirty) {
+      return pendingRef;
+    }
+    User u = user();
+    return u != null ? u.pendingRef : null;
+  }
+
+  void setPendingRef(String ref) {
+    pendingRefDirty = true;
+    pendingRef = ref;
+  }
+
+  void setSubscribed(boolean subscribed) {
+    subscribedDirty = true;
+    this.subscribed = subscribed;
+  }
+
+  void markHandled(long key) {
+    this.handledKey = key;
+  }
+
+  boolean isDirty() {
+    return touched || pendingRefDirty || subscribedDirty || handledKey != 0;
+  }
+
+  void commit() {
+    if (isDirty()) {
+      db.commitUnitOfWork(this);
+    }
+  }
+}
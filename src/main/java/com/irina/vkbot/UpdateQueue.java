@@ -0,0 +1,64 @@
+package com.irina.vkbot;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class UpdateQueue {
+  private final BlockingQueue<QueuedUpdate> queue;
+  private final int capacity;
+  private final AtomicLong enqueued = new AtomicLong();
+  private final AtomicLong dequeued = new AtomicLong();
+  private final AtomicLong backpressure = new AtomicLong();
+  private final AtomicLong waitNanosTotal = new AtomicLong();
+  private final AtomicLong waitNanosMax = new AtomicLong();
+
+  public UpdateQueue(int capacity) {
+    this.capacity = capacity;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+  }
+
+  public void put(Update update) throws InterruptedException {
+    QueuedUpdate item = new QueuedUpdate(update, System.nanoTime());
+    if (!queue.offer(item)) {
+      backpressure.incrementAndGet();
+      queue.put(item);
+    }
+    enqueued.incrementAndGet();
+  }
+
+  public Update take() throws InterruptedException {
+    return unwrap(queue.take());
+  }
+
+  public String metrics() {
+    long taken = dequeued.get();
+    long avgMs = taken > 0 ? TimeUnit.NANOSECONDS.toMillis(waitNanosTotal.get() / taken) : 0;
+    long maxMs = TimeUnit.NANOSECONDS.toMillis(waitNanosMax.getAndSet(0));
+    return "depth=" + queue.size() + "/" + capacity +
+      " enqueued=" + enqueued.get() +
+      " dequeued=" + taken +
+      " backpressure=" + backpressure.get() +
+      " wait_avg_ms=" + avgMs +
+      " wait_max_ms=" + maxMs;
+  }
+
+  private Update unwrap(QueuedUpdate item) {
+    long waited = System.nanoTime() - item.enqueuedAt;
+    dequeued.incrementAndGet();
+    waitNanosTotal.addAndGet(waited);
+    waitNanosMax.accumulateAndGet(waited, Math::max);
+    return item.update;
+  }
+
+  private static class QueuedUpdate {
+    final Update update;
+    final long enqueuedAt;
+
+    QueuedUpdate(Update update, long enqueuedAt) {
+      this.update = update;
+      this.enqueuedAt = enqueuedAt;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package com.irina.vkbot;
+
+import com.vk.api.sdk.client.AbstractQueryBuilder;
+import com.vk.api.sdk.exceptions.ApiException;
+import com.vk.api.sdk.exceptions.ClientException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class VkRateLimiter {
+  public enum Lane {
+    INTERACTIVE,
+    BULK,
+    BACKGROUND
+  }
+
+  private final double ratePerNano;
+  private final double burst;
+  private final ReentrantLock lock = new ReentrantLock(true);
+  private final Condition changed = lock.newCondition();
+  private final int[] waiting = new int[Lane.values().length];
+  private final AtomicLong[] acquired = counters();
+  private final AtomicLong[] waitNanos = counters();
+  private final AtomicLong[] throttled = counters();
+  private double tokens;
+  private long lastRefill;
+
+  public VkRateLimiter(int requestsPerSecond) {
+    this.ratePerNano = requestsPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+    this.burst = requestsPerSecond;
+    this.tokens = requestsPerSecond;
+    this.lastRefill = System.nanoTime();
+  }
+
+  public <T> T execute(Lane lane, AbstractQueryBuilder<?, T> query) throws ApiException, ClientException {
+    acquire(lane);
+    return query.execute();
+  }
+
+  public void acquire(Lane lane) {
+    int idx = lane.ordinal();
+    long start = System.nanoTime();
+    boolean wasThrottled = false;
+    lock.lock();
+    try {
+      waiting[idx]++;
+      try {
+        while (true) {
+          refill();
+          if (tokens >= 1 && !higherPriorityWaiting(idx)) {
+            tokens -= 1;
+            break;
+          }
+          wasThrottled = true;
+          long nanos = tokens >= 1 ? TimeUnit.MILLISECONDS.toNanos(5) : (long) ((1 - tokens) / ratePerNano);
+          changed.awaitNanos(Math.max(nanos, 1));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for VK rate limit", e);
+      } finally {
+        waiting[idx]--;
+        changed.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+    acquired[idx].incrementAndGet();
+    if (wasThrottled) {
+      throttled[idx].incrementAndGet();
+      waitNanos[idx].addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  public String metrics() {
+    StringBuilder sb = new StringBuilder();
+    for (Lane lane : Lane.values()) {
+      int i = lane.ordinal();
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      sb.append(lane.name().toLowerCase())
+        .append("[tokens=").append(acquired[i].get())
+        .append(" throttled=").append(throttled[i].get())
+        .append(" wait_ms=").append(TimeUnit.NANOSECONDS.toMillis(waitNanos[i].get()))
+        .append(']');
+    }
+    return sb.toString();
+  }
+
+  private boolean higherPriorityWaiting(int idx) {
+    for (int i = 0; i < idx; i++) {
+      if (waiting[i] > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano);
+    lastRefill = now;
+  }
+
+  private static AtomicLong[] counters() {
+    AtomicLong[] arr = new AtomicLong[Lane.values().length];
+    for (int i = 0; i < arr.length; i++) {
+      arr[i] = new AtomicLong();
+    }
+    return arr;
+  }
+}
@@ -0,0 +1,73 @@
+package com.irina.vkbot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class DbStatementCacheTest {
+  private static final int USERS = 1000;
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void reusedStatementsBindFreshParameters() {
+    Db db = seededDb();
+    for (int i = 0; i < 5 * USERS; i++) {
+      int userId = 1 + (i * 7919) % USERS;
+      assertEquals(userId, db.getUser(userId).userId);
+    }
+    assertNull(db.getUser(USERS + 1));
+  }
+
+  // mvn test -Dtest=DbStatementCacheTest#comparesCachedWithPerCallPrepare -Dbenchmark=true
+  @Test
+  @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+  void comparesCachedWithPerCallPrepare() throws SQLException {
+    Db db = seededDb();
+    int iterations = 200000;
+    try (Connection raw = DriverManager.getConnection("jdbc:sqlite:" + dir.resolve("bot.db"))) {
+      for (int round = 0; round < 5; round++) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+          try (PreparedStatement ps = raw.prepareStatement(
+            "SELECT user_id, first_seen, last_seen, is_subscribed, is_admin, pending_ref FROM users WHERE user_id=?")) {
+            ps.setInt(1, 1 + i % USERS);
+            try (ResultSet rs = ps.executeQuery()) {
+              rs.next();
+              rs.getInt(1);
+            }
+          }
+        }
+        long perCall = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+          db.getUser(1 + i % USERS);
+        }
+        long cached = System.nanoTime() - start;
+        System.out.println("round " + round + ": prepare_per_call_ns=" + perCall / iterations + " cached_ns=" + cached / iterations);
+      }
+    }
+  }
+
+  private Db seededDb() {
+    Db db = new Db(dir.resolve("bot.db").toString(), 2);
+    db.init();
+    for (int userId = 1; userId <= USERS; userId++) {
+      UnitOfWork uow = new UnitOfWork(db, userId, false);
+      uow.touch(1000 + userId);
+      uow.commit();
+    }
+    return db;
+  }
+}
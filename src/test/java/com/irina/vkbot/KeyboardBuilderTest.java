@@ -0,0 +1,124 @@
+package com.irina.vkbot;
+
+import com.google.gson.Gson;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class KeyboardBuilderTest {
+  private static final Gson GSON = new Gson();
+  private static final String ALPHABET = "ab\"\\<>&='\u2028\u2029\u0000\u0001\u001f\t\b\n\r\f\u007fЯ😀 {}:,/";
+
+  @Test
+  void matchesGsonOnFuzzedKeyboards() {
+    Random r = new Random(42);
+    for (int iter = 0; iter < 20000; iter++) {
+      List<List<Button>> rows = randomKeyboard(r);
+      boolean oneTime = r.nextBoolean();
+      assertEquals(gsonKeyboard(rows, oneTime), KeyboardBuilder.keyboard(rows, oneTime), "case " + iter);
+    }
+  }
+
+  @Test
+  void rejectsKeyboardsOverVkLimits() {
+    Button ok = KeyboardBuilder.button("ok", KeyboardBuilder.payload("start"), "primary");
+    assertThrows(IllegalArgumentException.class,
+      () -> KeyboardBuilder.keyboard(Collections.nCopies(KeyboardBuilder.MAX_ROWS + 1, KeyboardBuilder.rows(ok)), false));
+    assertThrows(IllegalArgumentException.class,
+      () -> KeyboardBuilder.keyboard(List.of(Collections.nCopies(KeyboardBuilder.MAX_BUTTONS_PER_ROW + 1, ok)), false));
+    Button longLabel = KeyboardBuilder.button("x".repeat(KeyboardBuilder.MAX_LABEL_LENGTH + 1), null, null);
+    assertThrows(IllegalArgumentException.class, () -> KeyboardBuilder.keyboard(List.of(KeyboardBuilder.rows(longLabel)), false));
+    Button longPayload = KeyboardBuilder.button("ok",
+      KeyboardBuilder.payload("x", "v", "y".repeat(KeyboardBuilder.MAX_PAYLOAD_LENGTH)), null);
+    assertThrows(IllegalArgumentException.class, () -> KeyboardBuilder.keyboard(List.of(KeyboardBuilder.rows(longPayload)), false));
+  }
+
+  // mvn test -Dtest=KeyboardBuilderTest#comparesSpeedWithGson -Dbenchmark=true
+  @Test
+  @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+  void comparesSpeedWithGson() {
+    List<List<Button>> rows = new ArrayList<>();
+    for (int i = 0; i < KeyboardBuilder.MAX_ROWS; i++) {
+      rows.add(KeyboardBuilder.rows(KeyboardBuilder.button("Материал номер " + i, KeyboardBuilder.payload("magnet", "id", i), "primary")));
+    }
+    int iterations = 200000;
+    for (int round = 0; round < 5; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        gsonKeyboard(rows, false);
+      }
+      long gson = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        KeyboardBuilder.keyboard(rows, false);
+      }
+      long builder = System.nanoTime() - start;
+      System.out.println("round " + round + ": gson_ns=" + gson / iterations + " builder_ns=" + builder / iterations);
+    }
+  }
+
+  private static List<List<Button>> randomKeyboard(Random r) {
+    List<List<Button>> rows = new ArrayList<>();
+    int rowCount = 1 + r.nextInt(KeyboardBuilder.MAX_ROWS);
+    for (int i = 0; i < rowCount; i++) {
+      List<Button> row = new ArrayList<>();
+      int buttons = 1 + r.nextInt(4);
+      for (int j = 0; j < buttons; j++) {
+        String text = randomText(r);
+        Map<String, Object> payload = r.nextBoolean()
+          ? KeyboardBuilder.payload("cmd" + text.substring(0, Math.min(3, text.length())))
+          : KeyboardBuilder.payload("x", r.nextBoolean() ? "id" : "k\"<", r.nextBoolean() ? (Object) r.nextInt() : text);
+        row.add(KeyboardBuilder.button(r.nextInt(20) == 0 ? null : text,
+          r.nextInt(10) == 0 ? null : payload,
+          r.nextInt(5) == 0 ? null : "primary"));
+      }
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  private static String randomText(Random r) {
+    StringBuilder sb = new StringBuilder();
+    int length = r.nextInt(12);
+    for (int i = 0; i < length; i++) {
+      sb.append(ALPHABET.charAt(r.nextInt(ALPHABET.length())));
+    }
+    return sb.toString();
+  }
+
+  // The Gson-based encoder KeyboardBuilder replaced; kept here as the reference output.
+  private static String gsonKeyboard(List<List<Button>> rows, boolean oneTime) {
+    Map<String, Object> root = new LinkedHashMap<>();
+    root.put("one_time", oneTime);
+    List<List<Map<String, Object>>> buttons = new ArrayList<>();
+    for (List<Button> row : rows) {
+      List<Map<String, Object>> rowButtons = new ArrayList<>();
+      for (Button b : row) {
+        Map<String, Object> action = new LinkedHashMap<>();
+        action.put("type", "text");
+        action.put("label", b.label);
+        if (b.payload != null) {
+          action.put("payload", GSON.toJson(b.payload));
+        }
+        Map<String, Object> btn = new LinkedHashMap<>();
+        btn.put("action", action);
+        if (b.color != null) {
+          btn.put("color", b.color);
+        }
+        rowButtons.add(btn);
+      }
+      buttons.add(rowButtons);
+    }
+    root.put("buttons", buttons);
+    return GSON.toJson(root);
+  }
+}
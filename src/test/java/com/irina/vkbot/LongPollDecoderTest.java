@@ -0,0 +1,136 @@
+package com.irina.vkbot;
+
+import com.google.gson.Gson;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LongPollDecoderTest {
+  private static final Gson GSON = new Gson();
+  private static final Set<String> TYPES = BotService.HANDLED_TYPES;
+  private static final LongPollDecoder DECODER = new LongPollDecoder(TYPES);
+
+  @Test
+  void decodesMessageLikeGson() throws IOException {
+    assertMatchesGson("{\"ts\":\"42\",\"updates\":[" +
+      "{\"type\":\"message_new\",\"event_id\":\"e1\",\"group_id\":1,\"object\":{\"client_info\":{\"keyboard\":true,\"button_actions\":[\"text\"]}," +
+      "\"message\":{\"id\":10,\"date\":1700000000,\"conversation_message_id\":5,\"from_id\":7,\"peer_id\":7,\"text\":\"Привет \\\"мир\\\"\"," +
+      "\"payload\":\"{\\\"cmd\\\":\\\"magnet\\\",\\\"id\\\":3,\\\"x\\\":{\\\"y\\\":[1,2]}}\",\"ref\":\"m123\",\"fwd_messages\":[{\"text\":\"old\"}]," +
+      "\"attachments\":[{\"type\":\"photo\",\"photo\":{\"id\":1,\"sizes\":[{\"url\":\"https://p\"}]}}," +
+      "{\"type\":\"doc\",\"doc\":{\"id\":99,\"owner_id\":-1,\"title\":\"guide.pdf\",\"url\":\"https://d\",\"access_key\":\"k\",\"preview\":{\"photo\":{}}}}]}}}" +
+      "]}");
+  }
+
+  @Test
+  void filtersUnknownEventTypes() throws IOException {
+    String json = "{\"ts\":\"43\",\"updates\":[" +
+      "{\"type\":\"wall_post_new\",\"object\":{\"id\":1,\"text\":\"post\",\"attachments\":[{\"type\":\"doc\",\"doc\":{\"id\":1}}]}}," +
+      "{\"object\":{\"user_id\":5},\"type\":\"group_join\"}," +
+      "{\"type\":\"message_typing_state\",\"object\":{\"state\":\"typing\",\"from_id\":7}}," +
+      "{\"type\":\"group_leave\",\"object\":{\"user_id\":6,\"self\":1}}" +
+      "]}";
+    assertMatchesGson(json);
+    assertEquals(2, decode(json).updates.size());
+  }
+
+  @Test
+  void leavesMissingConversationMessageIdAtZero() throws IOException {
+    String json = "{\"ts\":\"44\",\"updates\":[{\"type\":\"message_new\",\"object\":{\"message\":{\"id\":11,\"from_id\":8,\"peer_id\":8,\"text\":\"hi\"}}}]}";
+    assertMatchesGson(json);
+    assertEquals(0, decode(json).updates.get(0).object.message.conversation_message_id);
+    assertEquals(0, DedupWindow.key(decode(json).updates.get(0)));
+  }
+
+  @Test
+  void decodesFailedResponses() throws IOException {
+    assertMatchesGson("{\"failed\":1,\"ts\":\"45\"}");
+    assertMatchesGson("{\"failed\":2}");
+    assertMatchesGson("{\"failed\":3}");
+    LongPollResponse resp = decode("{\"failed\":2}");
+    assertEquals(2, resp.failed);
+    assertNull(resp.ts);
+  }
+
+  @Test
+  void decodesCallbackEnvelope() throws IOException {
+    CallbackEvent event = DECODER.decodeCallback(new StringReader("{\"type\":\"confirmation\",\"group_id\":12,\"secret\":\"s\"}"));
+    assertEquals("confirmation", event.type);
+    assertEquals(12, event.groupId);
+    assertEquals("s", event.secret);
+    assertNull(event.update);
+  }
+
+  // mvn test -Dtest=LongPollDecoderTest#comparesSpeedWithGson -Dbenchmark=true
+  @Test
+  @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+  void comparesSpeedWithGson() throws IOException {
+    StringBuilder sb = new StringBuilder("{\"ts\":\"100\",\"updates\":[");
+    for (int i = 0; i < 100; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      if (i % 4 == 0) {
+        sb.append("{\"type\":\"message_new\",\"object\":{\"client_info\":{\"keyboard\":true},\"message\":{\"id\":").append(i)
+          .append(",\"conversation_message_id\":").append(i).append(",\"from_id\":7,\"peer_id\":7,\"text\":\"Начать\",")
+          .append("\"payload\":\"{\\\"cmd\\\":\\\"list\\\"}\",\"attachments\":[]}}}");
+      } else {
+        sb.append("{\"type\":\"message_read\",\"object\":{\"from_id\":7,\"peer_id\":7,\"read_message_id\":").append(i)
+          .append(",\"text\":\"").append("x".repeat(200)).append("\"}}");
+      }
+    }
+    String json = sb.append("]}").toString();
+    int iterations = 20000;
+    for (int round = 0; round < 5; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        gsonDecode(json);
+      }
+      long gson = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        decode(json);
+      }
+      long decoder = System.nanoTime() - start;
+      System.out.println("round " + round + ": gson_ns=" + gson / iterations + " decoder_ns=" + decoder / iterations);
+    }
+  }
+
+  private static void assertMatchesGson(String json) throws IOException {
+    assertEquals(GSON.toJson(gsonDecode(json)), GSON.toJson(decode(json)), json);
+  }
+
+  private static LongPollResponse decode(String json) throws IOException {
+    return DECODER.decode(new StringReader(json));
+  }
+
+  // The pre-streaming path: bind the whole body with Gson, then keep only handled types and doc attachments.
+  private static LongPollResponse gsonDecode(String json) {
+    LongPollResponse resp = GSON.fromJson(json, LongPollResponse.class);
+    List<Update> updates = new ArrayList<>();
+    if (resp.updates != null) {
+      for (Update u : resp.updates) {
+        if (u.type == null || !TYPES.contains(u.type)) {
+          continue;
+        }
+        LpMessage msg = u.object != null ? u.object.message : null;
+        if (msg != null && msg.attachments != null) {
+          msg.attachments.removeIf(a -> a.doc == null);
+          if (msg.attachments.isEmpty()) {
+            msg.attachments = null;
+          }
+        }
+        updates.add(u);
+      }
+    }
+    resp.updates = updates;
+    return resp;
+  }
+}
@@ -0,0 +1,44 @@
+package com.irina.vkbot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MembershipCacheTest {
+  @Test
+  void evictsLeastRecentlyUsedWhenFull() {
+    MembershipCache cache = new MembershipCache(3600, 3);
+    cache.put(1, true);
+    cache.put(2, true);
+    cache.put(3, false);
+    cache.get(1);
+    cache.put(4, true);
+    assertNull(cache.get(2));
+    assertEquals(true, cache.get(1));
+    assertEquals(false, cache.get(3));
+    assertEquals(true, cache.get(4));
+  }
+
+  @Test
+  void refreshIfPresentNeverAddsEntries() {
+    MembershipCache cache = new MembershipCache(3600, 2);
+    cache.put(1, false);
+    cache.put(2, true);
+    for (int userId = 3; userId < 1000; userId++) {
+      cache.refreshIfPresent(userId, true);
+    }
+    cache.refreshIfPresent(1, true);
+    assertEquals(true, cache.get(1));
+    assertEquals(true, cache.get(2));
+    assertNull(cache.get(3));
+  }
+
+  @Test
+  void dropsExpiredEntriesOnRead() throws InterruptedException {
+    MembershipCache cache = new MembershipCache(1, 10);
+    cache.put(1, true);
+    Thread.sleep(1100);
+    assertNull(cache.get(1));
+  }
+}
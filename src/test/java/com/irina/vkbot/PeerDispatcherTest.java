@@ -0,0 +1,31 @@
+package com.irina.vkbot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PeerDispatcherTest {
+  @Test
+  void shutdownDrainsQueuedUpdates() throws InterruptedException {
+    AtomicInteger handled = new AtomicInteger();
+    PeerDispatcher dispatcher = new PeerDispatcher(4, 1000, u -> {
+      try {
+        Thread.sleep(1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      handled.incrementAndGet();
+    });
+    dispatcher.start();
+    for (int i = 0; i < 400; i++) {
+      Update update = new Update();
+      update.object = new UpdateObject();
+      update.object.user_id = i;
+      dispatcher.dispatch(update);
+    }
+    dispatcher.shutdown(10000);
+    assertEquals(400, handled.get());
+  }
+}